@@ -0,0 +1,430 @@
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that the palettes found by ImageManipulation.compressImageToKColors, and the time taken to find them, have
+ *  not regressed, by compressing a fixed corpus with fixed seeds in every algorithm mode and comparing the results
+ *  with golden baselines.
+ * The corpus is examples/xp.jpeg, scaled down so every mode runs in seconds, and synthetic images of random colours
+ *  and of a smooth gradient. For each image and mode the PSNR of the output, the inertia and number of iterations of
+ *  the clustering (from a metrics file), the fastest time of several runs, and the peak heap use are recorded.
+ * A run fails, exiting with status 1, when the PSNR falls, or the inertia, iterations, time, or peak memory rise, by
+ *  more than their tolerance. The quality measures are exact for fixed seeds, so their tolerances only allow for
+ *  floating point differences, while time and memory depend on the machine, so baselines should be made with
+ *  --update on the machine that runs the harness.
+ *
+ * Compile with the sources: "javac -d out src/*.java benchmarks/*.java"
+ * Run from the repository root with
+ *  "java -cp out QualityHarness (--update) (--baselines FILE) (--runs N) (--filter TEXT) (--time-tolerance FRACTION)"
+ */
+public class QualityHarness {
+    public static final String DEFAULT_BASELINES = "benchmarks/quality-baselines.jsonl";
+    public static final String EXAMPLE_IMAGE = "examples/xp.jpeg";
+    private static final long SEED = 42;
+    private static final int K = 16;
+    //Untimed runs before each measurement, so the code is compiled by the JIT even when run on its own with --filter
+    private static final int WARMUP_RUNS = 3;
+    //Longest side of the example image in the corpus
+    private static final int EXAMPLE_SIZE = 400;
+
+    //Tolerances, as the most a measure may get worse by
+    private static final double PSNR_TOLERANCE_DB = 0.05;
+    private static final double INERTIA_TOLERANCE = 0.005;
+    private static final double ITERATIONS_TOLERANCE = 0.1;
+    private static final double MEMORY_TOLERANCE = 0.25;
+    public static final double DEFAULT_TIME_TOLERANCE = 0.5;
+    //Times within this of the baseline pass, as short runs vary by more than the tolerance
+    private static final double TIME_SLACK_MILLIS = 25;
+
+    private final int runs;
+    private final String filter;
+
+    public QualityHarness(int runs, String filter) {
+        this.runs = runs;
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean update = false;
+        String baselinesPath = DEFAULT_BASELINES;
+        int runs = 3;
+        String filter = null;
+        double timeTolerance = DEFAULT_TIME_TOLERANCE;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--update":
+                        update = true;
+                        break;
+                    case "--baselines":
+                        baselinesPath = args[++i];
+                        break;
+                    case "--runs":
+                        runs = Integer.parseInt(args[++i]);
+                        break;
+                    case "--filter":
+                        filter = args[++i];
+                        break;
+                    case "--time-tolerance":
+                        timeTolerance = Double.parseDouble(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("java QualityHarness (--update) (--baselines FILE) (--runs N) (--filter TEXT) " +
+                    "(--time-tolerance FRACTION)");
+            System.exit(2);
+        }
+        if (runs < 1) {
+            System.out.println("--runs must be at least 1");
+            System.exit(2);
+        }
+
+        List<Result> results = new QualityHarness(runs, filter).run();
+        if (update) {
+            writeBaselines(results, baselinesPath);
+            System.out.println("Baselines written to " + baselinesPath);
+            return;
+        }
+        Map<String, Result> baselines = readBaselines(baselinesPath);
+        int regressions = 0;
+        for (Result result : results) {
+            Result baseline = baselines.get(result.key());
+            if (baseline == null) {
+                System.out.println("NO BASELINE\t" + result.key());
+                regressions++;
+                continue;
+            }
+            List<String> failures = result.compare(baseline, timeTolerance);
+            for (String failure : failures) {
+                System.out.println("REGRESSED\t" + result.key() + "\t" + failure);
+            }
+            regressions += failures.size();
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " regressions against " + baselinesPath);
+            System.exit(1);
+        }
+        System.out.println("No regressions against " + baselinesPath);
+    }
+
+    //Properties of every algorithm mode, all with the SEED
+    static Map<String, Map<String, String>> modes() {
+        Map<String, Map<String, String>> modes = new LinkedHashMap<>();
+        modes.put("lloyd", properties("algorithm=lloyd", "initialization=k++"));
+        modes.put("hamerly", properties("algorithm=hamerly", "initialization=k++"));
+        modes.put("mini-batch", properties("algorithm=mini-batch", "initialization=k++"));
+        modes.put("k-means||", properties("initialization=k-means||"));
+        modes.put("random-data-point", properties("initialization=random data point"));
+        modes.put("histogram", properties("histogram=6", "initialization=k++"));
+        modes.put("pyramid", properties("pyramid=3", "initialization=k++"));
+        modes.put("oklab", properties("colour-space=oklab", "initialization=k++"));
+        //Oversubscribed threads make the times too noisy to compare, and the output is the same for any count
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        modes.put("threads", properties("threads=" + threads, "initialization=k++"));
+        modes.put("object", properties("engine=object", "initialization=k++"));
+        return modes;
+    }
+
+    private static Map<String, String> properties(String... keyValues) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("seed", Long.toString(SEED));
+        for (String keyValue : keyValues) {
+            int equals = keyValue.indexOf('=');
+            properties.put(keyValue.substring(0, equals), keyValue.substring(equals + 1));
+        }
+        return properties;
+    }
+
+    //The corpus, by name
+    static Map<String, BufferedImage> corpus() throws IOException {
+        Map<String, BufferedImage> corpus = new LinkedHashMap<>();
+        BufferedImage example = ImageIO.read(new File(EXAMPLE_IMAGE));
+        if (example == null) {
+            throw new IOException("Can't read " + EXAMPLE_IMAGE + ". Run from the repository root.");
+        }
+        corpus.put("xp", scale(example, EXAMPLE_SIZE));
+        corpus.put("random-64", syntheticImage(256, 256, 64, SEED));
+        corpus.put("random-4096", syntheticImage(256, 256, 4096, SEED));
+        corpus.put("gradient", gradientImage(256, 256));
+        return corpus;
+    }
+
+    //The image scaled down so its longest side is at most maxSize, as an int RGB image
+    private static BufferedImage scale(BufferedImage image, int maxSize) {
+        double scale = Math.min(1, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    //A width x height RGB image of pixels picked at random from numColors random colours, as the JMH benchmarks use
+    private static BufferedImage syntheticImage(int width, int height, int numColors, long seed) {
+        Random rnd = new Random(seed);
+        int[] colors = new int[numColors];
+        for (int i = 0; i < numColors; i++) {
+            colors[i] = rnd.nextInt(1 << 24);
+        }
+        int[] rgbData = new int[width * height];
+        for (int i = 0; i < rgbData.length; i++) {
+            rgbData[i] = colors[rnd.nextInt(numColors)];
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, rgbData, 0, width);
+        return image;
+    }
+
+    //Red across, green down, and blue along the diagonal, which bands when compressed to few colours
+    private static BufferedImage gradientImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * 255 / (width - 1);
+                int green = y * 255 / (height - 1);
+                int blue = (x + y) * 255 / (width + height - 2);
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        return image;
+    }
+
+    private List<Result> run() throws IOException {
+        List<Result> results = new ArrayList<>();
+        Map<String, Map<String, String>> modes = modes();
+        for (Map.Entry<String, BufferedImage> image : corpus().entrySet()) {
+            for (Map.Entry<String, Map<String, String>> mode : modes.entrySet()) {
+                Result result = new Result(image.getKey(), mode.getKey());
+                if (filter != null && !result.key().contains(filter)) {
+                    continue;
+                }
+                measure(result, image.getValue(), mode.getValue());
+                results.add(result);
+                System.out.println(result);
+            }
+        }
+        return results;
+    }
+
+    //Compresses a copy of the image WARMUP_RUNS times, then runs times, keeping the fastest time, as the least affected
+    // by other work on the machine, and the largest peak
+    private void measure(Result result, BufferedImage image, Map<String, String> modeProperties) throws IOException {
+        File metricsFile = File.createTempFile("quality-harness", ".jsonl");
+        try {
+            Map<String, String> properties = new HashMap<>(modeProperties);
+            properties.put("metrics-file", metricsFile.getPath());
+            result.millis = Double.POSITIVE_INFINITY;
+            for (int run = -WARMUP_RUNS; run < runs; run++) {
+                BufferedImage copy = copy(image);
+                System.gc();
+                resetPeakHeap();
+                long start = System.nanoTime();
+                BufferedImage output = ImageManipulation.compressImageToKColors(copy, K, properties);
+                long nanos = System.nanoTime() - start;
+                if (run < 0) {
+                    continue;
+                }
+                result.millis = Math.min(result.millis, nanos / 1e6);
+                result.peakBytes = Math.max(result.peakBytes, getPeakHeap());
+                //Every run gives the same output for the seed, so the quality is measured once
+                if (run == 0) {
+                    result.psnr = psnr(image, output);
+                    readMetrics(result, metricsFile);
+                }
+            }
+        } finally {
+            metricsFile.delete();
+        }
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        copy.setRGB(0, 0, image.getWidth(), image.getHeight(),
+                image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()), 0, image.getWidth());
+        return copy;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    //Sum of the peak use of every heap pool since they were reset
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    //Peak signal to noise ratio of the output to the original, in dB over the RGB channels
+    static double psnr(BufferedImage original, BufferedImage output) {
+        int width = original.getWidth();
+        int height = original.getHeight();
+        int[] expected = original.getRGB(0, 0, width, height, null, 0, width);
+        int[] actual = output.getRGB(0, 0, width, height, null, 0, width);
+        double squaredError = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int difference = ((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF);
+                squaredError += difference * difference;
+            }
+        }
+        double meanSquaredError = squaredError / (3.0 * expected.length);
+        return meanSquaredError == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / meanSquaredError);
+    }
+
+    //The iterations of every level of the clustering, and the inertia of the last iteration that has one
+    private static void readMetrics(Result result, File metricsFile) throws IOException {
+        Pattern inertiaPattern = Pattern.compile("\"inertia\": ([0-9.]+)");
+        result.iterations = 0;
+        for (String line : Files.readAllLines(metricsFile.toPath())) {
+            if (!line.startsWith("{\"event\": \"iteration\"")) {
+                continue;
+            }
+            result.iterations++;
+            Matcher matcher = inertiaPattern.matcher(line);
+            if (matcher.find()) {
+                result.inertia = Double.parseDouble(matcher.group(1));
+            }
+        }
+    }
+
+    private static void writeBaselines(List<Result> results, String baselinesPath) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(baselinesPath)))) {
+            for (Result result : results) {
+                writer.println(result.toJson());
+            }
+            if (writer.checkError()) {
+                throw new IOException("Can't write baselines file " + baselinesPath);
+            }
+        }
+    }
+
+    private static Map<String, Result> readBaselines(String baselinesPath) throws IOException {
+        Map<String, Result> baselines = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(baselinesPath))) {
+            if (!line.trim().isEmpty()) {
+                Result baseline = Result.fromJson(line);
+                baselines.put(baseline.key(), baseline);
+            }
+        }
+        return baselines;
+    }
+
+    static class Result {
+        private static final Pattern FIELD = Pattern.compile("\"([a-zA-Z]+)\": (\"[^\"]*\"|[^,}]+)");
+
+        private final String image;
+        private final String mode;
+        private double psnr = Double.NaN;
+        //NaN if no iteration had an inertia
+        private double inertia = Double.NaN;
+        private int iterations;
+        private double millis;
+        private long peakBytes;
+
+        Result(String image, String mode) {
+            this.image = image;
+            this.mode = mode;
+        }
+
+        String key() {
+            return image + "/" + mode;
+        }
+
+        //What got worse than the baseline by more than its tolerance, empty if nothing did
+        List<String> compare(Result baseline, double timeTolerance) {
+            List<String> failures = new ArrayList<>();
+            if (psnr < baseline.psnr - PSNR_TOLERANCE_DB) {
+                failures.add(String.format(Locale.ROOT, "PSNR %.3f dB < %.3f dB", psnr, baseline.psnr));
+            }
+            if (!Double.isNaN(baseline.inertia) && !(inertia <= baseline.inertia * (1 + INERTIA_TOLERANCE))) {
+                failures.add(String.format(Locale.ROOT, "inertia %.1f > %.1f", inertia, baseline.inertia));
+            }
+            if (iterations > Math.ceil(baseline.iterations * (1 + ITERATIONS_TOLERANCE))) {
+                failures.add("iterations " + iterations + " > " + baseline.iterations);
+            }
+            if (millis > baseline.millis * (1 + timeTolerance) && millis > baseline.millis + TIME_SLACK_MILLIS) {
+                failures.add(String.format(Locale.ROOT, "time %.1f ms > %.1f ms", millis, baseline.millis));
+            }
+            if (peakBytes > baseline.peakBytes * (1 + MEMORY_TOLERANCE)) {
+                failures.add("peak heap " + (peakBytes >> 20) + " MB > " + (baseline.peakBytes >> 20) + " MB");
+            }
+            return failures;
+        }
+
+        String toJson() {
+            return "{\"image\": \"" + image + "\", \"mode\": \"" + mode + "\"" +
+                    ", \"psnr\": " + format(psnr) +
+                    ", \"inertia\": " + (Double.isNaN(inertia) ? "null" : String.format(Locale.ROOT, "%.1f", inertia)) +
+                    ", \"iterations\": " + iterations +
+                    ", \"millis\": " + String.format(Locale.ROOT, "%.1f", millis) +
+                    ", \"peakBytes\": " + peakBytes + "}";
+        }
+
+        static Result fromJson(String line) {
+            Map<String, String> fields = new HashMap<>();
+            Matcher matcher = FIELD.matcher(line);
+            while (matcher.find()) {
+                fields.put(matcher.group(1), matcher.group(2).replace("\"", "").trim());
+            }
+            if (!fields.containsKey("image") || !fields.containsKey("mode")) {
+                throw new IllegalArgumentException("Invalid baseline: " + line);
+            }
+            Result result = new Result(fields.get("image"), fields.get("mode"));
+            try {
+                result.psnr = Double.parseDouble(fields.getOrDefault("psnr", "NaN"));
+                String inertia = fields.getOrDefault("inertia", "null");
+                result.inertia = inertia.equals("null") ? Double.NaN : Double.parseDouble(inertia);
+                result.iterations = Integer.parseInt(fields.getOrDefault("iterations", "0"));
+                result.millis = Double.parseDouble(fields.getOrDefault("millis", "0"));
+                result.peakBytes = Long.parseLong(fields.getOrDefault("peakBytes", "0"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid baseline: " + line);
+            }
+            return result;
+        }
+
+        private static String format(double value) {
+            return Double.isInfinite(value) ? "\"Infinity\"" : String.format(Locale.ROOT, "%.4f", value);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-28s PSNR %8.3f dB  inertia %14.1f  iterations %4d  %9.1f ms  peak heap %5d MB",
+                    key(), psnr, inertia, iterations, millis, peakBytes >> 20);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import benchmarks.Stage;
+import benchmarks.StageFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The stages of compressing an image benchmarked by the benchmarks package, each named by its benchmark method.
+ * Each stage runs on a synthetic image of pixels picked at random from a number of random colours, starting from k
+ *  colours of the image picked at random, all with fixed seeds so every run measures the same work.
+ */
+public class Stages implements StageFactory {
+    public static final long SEED = 42;
+
+    @Override
+    public Stage create(String name, int size, int colors, int k) {
+        if (name.equals("distance")) {
+            return distance();
+        }
+        BufferedImage image = syntheticImage(size, size, colors, SEED);
+        int[] rgbData = image.getRGB(0, 0, size, size, null, 0, size);
+        int[][] initialCentres = initialCentres(rgbData, k);
+        PackedDataPoints packedDataPoints = PackedDataPoints.fromRGB(rgbData, size, size);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("seed", Long.toString(SEED));
+        //Recoloured in place, so copied back from rgbData before every run
+        BufferedImage copy = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Runnable resetCopy = () -> copy.setRGB(0, 0, size, size, rgbData, 0, size);
+
+        switch (name) {
+            case "assignPackedLloyd": {
+                PackedKMeansEngine engine = new PackedKMeansEngine(packedDataPoints);
+                return () -> {
+                    engine.setCentres(initialCentres);
+                    return engine.assign();
+                };
+            }
+            case "assignPackedVector": {
+                PackedKMeansEngine engine = new PackedKMeansEngine(packedDataPoints);
+                if (!engine.setKernel("vector")) {
+                    throw new IllegalStateException("The vector kernel isn't available. Build with -Pvector.");
+                }
+                return () -> {
+                    engine.setCentres(initialCentres);
+                    return engine.assign();
+                };
+            }
+            case "assignPackedHamerly": {
+                PackedKMeansEngine engine = new PackedKMeansEngine(packedDataPoints);
+                engine.setHamerlyBounds(true);
+                //Hamerly's bounds only help after the first iteration, so this is two assignments and an update
+                return () -> {
+                    engine.setCentres(initialCentres);
+                    engine.assign();
+                    engine.update();
+                    return engine.assign();
+                };
+            }
+            case "updatePacked": {
+                PackedKMeansEngine engine = new PackedKMeansEngine(packedDataPoints);
+                engine.setCentres(initialCentres);
+                engine.assign();
+                return () -> (long) engine.update();
+            }
+            case "assignObject": {
+                KMeansAlgorithm objectAlgorithm = objectAlgorithm(packedDataPoints, k, properties);
+                return () -> {
+                    objectAlgorithm.assignDataPointsToCentroid();
+                    return objectAlgorithm.getCentroids()[0].getDataPoints().size();
+                };
+            }
+            case "updateObject": {
+                KMeansAlgorithm objectAlgorithm = objectAlgorithm(packedDataPoints, k, properties);
+                objectAlgorithm.assignDataPointsToCentroid();
+                return () -> {
+                    for (Centroid centroid : objectAlgorithm.getCentroids()) {
+                        centroid.reassignCentre();
+                    }
+                    return objectAlgorithm.getCentroids()[0].getCentre().getX();
+                };
+            }
+            case "recolourPalette":
+                //A new palette each time, so the lookup table starts empty as it does for a new image
+                return inPlace(resetCopy, () -> {
+                    ImageManipulation.modifyImageColors(copy, new Palette(initialCentres));
+                    return copy.getRGB(0, 0);
+                });
+            case "recolourFloydSteinberg":
+            case "recolourBayer": {
+                //Recolouring fused with dithering, on one thread
+                Dithering dithering = new Dithering(name.equals("recolourBayer") ? Dithering.BAYER
+                        : Dithering.FLOYD_STEINBERG, 1);
+                return inPlace(resetCopy, () -> {
+                    ImageManipulation.modifyImageColors(copy, new Palette(initialCentres), dithering);
+                    return copy.getRGB(0, 0);
+                });
+            }
+            case "recolourIndexed":
+                return () -> ImageManipulation.toIndexedImage(image, new Palette(initialCentres)).getRaster()
+                        .getSample(0, 0, 0);
+            case "encodePngRgb": {
+                BufferedImage recoloured = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+                recoloured.setRGB(0, 0, size, size, rgbData, 0, size);
+                ImageManipulation.modifyImageColors(recoloured, new Palette(initialCentres));
+                return () -> encodePng(recoloured);
+            }
+            case "encodePngIndexed": {
+                //The same colours as encodePngRgb
+                BufferedImage indexed = ImageManipulation.toIndexedImage(image, new Palette(initialCentres));
+                return () -> encodePng(indexed);
+            }
+            case "pipelinePacked":
+                return inPlace(resetCopy, () -> ImageManipulation.compressImageToKColors(copy, k, properties)
+                        .getRGB(0, 0));
+            case "pipelineSession": {
+                //The same pipeline, reusing the buffers of a session between runs
+                KMeansSession session = new KMeansSession(properties);
+                return new Stage() {
+                    @Override
+                    public long run() {
+                        return session.compressImageToKColors(copy, k).getRGB(0, 0);
+                    }
+
+                    @Override
+                    public void reset() {
+                        resetCopy.run();
+                    }
+
+                    @Override
+                    public void close() {
+                        session.close();
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown stage: " + name);
+        }
+    }
+
+    //A width x height RGB image of pixels picked at random from numColors random colours
+    public static BufferedImage syntheticImage(int width, int height, int numColors, long seed) {
+        Random rnd = new Random(seed);
+        int[] colors = new int[numColors];
+        for (int i = 0; i < numColors; i++) {
+            colors[i] = rnd.nextInt(1 << 24);
+        }
+        int[] rgbData = new int[width * height];
+        for (int i = 0; i < rgbData.length; i++) {
+            rgbData[i] = colors[rnd.nextInt(numColors)];
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, rgbData, 0, width);
+        return image;
+    }
+
+    //DataPoint.distance between every pair of 1024 random points
+    private static Stage distance() {
+        Random rnd = new Random(SEED);
+        DataPoint[] points = new DataPoint[1024];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new DataPoint(rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(256));
+        }
+        return () -> {
+            double sum = 0;
+            for (DataPoint a : points) {
+                for (DataPoint b : points) {
+                    sum += a.distance(b);
+                }
+            }
+            return (long) sum;
+        };
+    }
+
+    private static KMeansAlgorithm objectAlgorithm(PackedDataPoints packedDataPoints, int k,
+                                                   Map<String, String> properties) {
+        List<DataPoint> dataPoints = new ArrayList<>(packedDataPoints.size());
+        for (int i = 0; i < packedDataPoints.size(); i++) {
+            dataPoints.add(new DataPoint(packedDataPoints.getCoord(i, 0), packedDataPoints.getCoord(i, 1),
+                    packedDataPoints.getCoord(i, 2)));
+        }
+        KMeansAlgorithm objectAlgorithm = new KMeansAlgorithm(dataPoints, properties);
+        objectAlgorithm.initialCentroids(k);
+        return objectAlgorithm;
+    }
+
+    //A stage that changes its input, which is reset before every run
+    private static Stage inPlace(Runnable reset, Stage stage) {
+        return new Stage() {
+            @Override
+            public long run() {
+                return stage.run();
+            }
+
+            @Override
+            public void reset() {
+                reset.run();
+            }
+        };
+    }
+
+    //Size in bytes of the image encoded as a PNG
+    private static long encodePng(BufferedImage image) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", output);
+        } catch (IOException e) {
+            throw new IllegalStateException("IO Exception: " + e.getMessage(), e);
+        }
+        return output.size();
+    }
+
+    //k colours of the image, picked at random with a fixed seed
+    private static int[][] initialCentres(int[] rgbData, int k) {
+        Random rnd = new Random(SEED);
+        int[][] centres = new int[k][];
+        for (int i = 0; i < k; i++) {
+            int rgbValue = rgbData[rnd.nextInt(rgbData.length)];
+            centres[i] = new int[] {(rgbValue >> 16) & 0xFF, (rgbValue >> 8) & 0xFF, rgbValue & 0xFF};
+        }
+        return centres;
+    }
+}
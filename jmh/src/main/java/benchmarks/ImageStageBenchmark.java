@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the stages of compressing a synthetic image of size x size pixels, picked from a number of random
+ *  colours, for a range of k. Each benchmark method runs the stage of the same name.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public abstract class ImageStageBenchmark {
+    @Param({"256", "1024"})
+    public int size;
+    @Param({"64", "4096", "262144"})
+    public int colors;
+    @Param({"4", "16", "64"})
+    public int k;
+
+    protected Stage stage;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        String benchmark = params.getBenchmark();
+        stage = StageFactory.load().create(benchmark.substring(benchmark.lastIndexOf('.') + 1), size, colors, k);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stage.close();
+    }
+}
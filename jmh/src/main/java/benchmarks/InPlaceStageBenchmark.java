@@ -0,0 +1,50 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The stages that recolour the image in place, which is copied back from the synthetic image, untimed, before every
+ *  invocation: ImageManipulation.modifyImageColors with and without dithering, and the whole pipeline, on its own and
+ *  in a KMeansSession. Every invocation takes well over a millisecond, so the per invocation setup doesn't skew them.
+ */
+@State(Scope.Benchmark)
+public class InPlaceStageBenchmark extends ImageStageBenchmark {
+    @Setup(Level.Invocation)
+    public void reset() {
+        stage.reset();
+    }
+
+    //With a new palette each time, so the lookup table starts empty as it does for a new image
+    @Benchmark
+    public long recolourPalette() {
+        return stage.run();
+    }
+
+    //Recolouring fused with Floyd-Steinberg dithering, on one thread
+    @Benchmark
+    public long recolourFloydSteinberg() {
+        return stage.run();
+    }
+
+    //Recolouring fused with Bayer dithering, on one thread
+    @Benchmark
+    public long recolourBayer() {
+        return stage.run();
+    }
+
+    //ImageManipulation.compressImageToKColors with the packed engine
+    @Benchmark
+    public long pipelinePacked() {
+        return stage.run();
+    }
+
+    //The same pipeline, reusing the buffers of a KMeansSession between invocations
+    @Benchmark
+    public long pipelineSession() {
+        return stage.run();
+    }
+}
@@ -0,0 +1,17 @@
+package benchmarks;
+
+/**
+ * A stage of compressing an image, set up by the Stages class of the default package, as JMH benchmarks must be in a
+ *  named package and so can't use the classes of the default package directly.
+ */
+public interface Stage {
+    //Runs the stage once, returning a result so the JIT can't remove the work
+    long run();
+
+    //Untimed, before every run of a stage that changes its input, such as recolouring an image in place
+    default void reset() {
+    }
+
+    default void close() {
+    }
+}
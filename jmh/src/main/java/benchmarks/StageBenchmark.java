@@ -0,0 +1,56 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The stages that leave their input unchanged: assigning pixels to centroids and updating the centroids with the
+ *  packed and object engines, recolouring to an indexed image, and encoding as an RGB or indexed PNG.
+ */
+@State(Scope.Benchmark)
+public class StageBenchmark extends ImageStageBenchmark {
+    //PackedKMeansEngine.assign with Lloyd's algorithm, from the initial centres
+    @Benchmark
+    public long assignPackedLloyd() {
+        return stage.run();
+    }
+
+    //Two assignments and an update with Hamerly's bounds, as the bounds only help after the first iteration
+    @Benchmark
+    public long assignPackedHamerly() {
+        return stage.run();
+    }
+
+    @Benchmark
+    public long updatePacked() {
+        return stage.run();
+    }
+
+    //KMeansAlgorithm.assignDataPointsToCentroid, finding each DataPoint's closest Centroid
+    @Benchmark
+    public long assignObject() {
+        return stage.run();
+    }
+
+    //Centroid.reassignCentre of every centroid
+    @Benchmark
+    public long updateObject() {
+        return stage.run();
+    }
+
+    @Benchmark
+    public long recolourIndexed() {
+        return stage.run();
+    }
+
+    @Benchmark
+    public long encodePngRgb() {
+        return stage.run();
+    }
+
+    @Benchmark
+    public long encodePngIndexed() {
+        return stage.run();
+    }
+}
@@ -0,0 +1,15 @@
+package benchmarks;
+
+public interface StageFactory {
+    //The stage with the name of a benchmark method, on a size x size synthetic image of colors colours, for k colours
+    Stage create(String name, int size, int colors, int k);
+
+    //The Stages class of the default package, loaded by name as it can't be imported
+    static StageFactory load() {
+        try {
+            return (StageFactory) Class.forName("Stages").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't load the stages: " + e.getMessage(), e);
+        }
+    }
+}
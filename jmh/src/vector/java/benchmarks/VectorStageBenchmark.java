@@ -0,0 +1,18 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * PackedKMeansEngine.assign with the VectorAssignmentKernel, only built with the "vector" profile.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class VectorStageBenchmark extends ImageStageBenchmark {
+    @Benchmark
+    public long assignPackedVector() {
+        return stage.run();
+    }
+}
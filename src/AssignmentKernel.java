@@ -0,0 +1,12 @@
+/**
+ * Finds the closest centres to blocks of points, for the assignment step of the PackedKMeansEngine.
+ * Each chunk of points assigned by the engine has its own kernel, so a kernel can keep buffers between calls.
+ */
+public interface AssignmentKernel {
+    int BLOCK_SIZE = 1024;
+
+    //Sets closest[i] to the index of the closest centre to point from + i, for the points from to to, at most
+    // BLOCK_SIZE. Squared distances are summed in coordinate order, and ties go to the lowest centre index, so the
+    // result is the same as comparing the points one at a time.
+    void closestCentres(int from, int to, double[][] centres, int[] closest);
+}
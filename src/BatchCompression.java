@@ -0,0 +1,302 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compresses many images in one JVM, running several jobs at once.
+ * The images are listed by a directory, a glob, or a manifest file (or "-" for standard input) of one path per line.
+ * Each job decodes, compresses, then encodes its image, and prints a results line:
+ *  "OK", milliseconds, input path, and output path, or "FAILED", milliseconds, input path, and the error.
+ * A failed image does not stop the other jobs.
+ * Output paths are resolved before any job starts. When inputs of the same name in different directories would be
+ *  written to the same output path, the later inputs, in the order listed, get a numeric suffix ("x-output-4-2.jpg").
+ *  Outputs are never written over an input, and an input listed twice fails.
+ * The "batch-jobs" property sets how many images are compressed at once (default the number of processors).
+ * With "virtual-threads" set to "true", and a JDK with virtual threads, every image gets its own virtual thread so
+ *  decoding and encoding don't hold up the compression, and at most twice as many images are held in memory.
+ */
+public class BatchCompression {
+    private final int k;
+    private final String outputDirectory;
+    private final Map<String, String> properties;
+    private final PrintStream results;
+    private final int jobs;
+    private final boolean virtualThreads;
+    //Limits the images compressing at once, and the images decoded at once
+    private final Semaphore compressing;
+    private final Semaphore inMemory;
+
+    public BatchCompression(int k, String outputDirectory, Map<String, String> properties, PrintStream results) {
+        this.k = k;
+        this.outputDirectory = outputDirectory;
+        this.properties = properties;
+        this.results = results;
+        //Every job would write over the same file
+        if (properties.containsKey("metrics-file")) {
+            throw new IllegalArgumentException("\"metrics-file\" can't be used in batch mode.");
+        }
+        if (properties.containsKey("intermediate-images") && properties.get("intermediate-images").equals("true")) {
+            throw new IllegalArgumentException("\"intermediate-images\" can't be used in batch mode.");
+        }
+        if (properties.containsKey("export-palette")) {
+            throw new IllegalArgumentException("\"export-palette\" can't be used in batch mode.");
+        }
+        if (properties.containsKey("batch-jobs")) {
+            try {
+                jobs = Integer.parseInt(properties.get("batch-jobs"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid \"batch-jobs\" value. Must be an integer.");
+            }
+            if (jobs < 1) {
+                throw new IllegalArgumentException("Invalid \"batch-jobs\" value. Must be at least 1.");
+            }
+        }
+        else {
+            jobs = Runtime.getRuntime().availableProcessors();
+        }
+        switch (properties.getOrDefault("virtual-threads", "false")) {
+            case "true":
+                virtualThreads = true;
+                break;
+            case "false":
+                virtualThreads = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid \"virtual-threads\" value. Must be \"true\" or \"false\".");
+        }
+        compressing = new Semaphore(jobs);
+        inMemory = new Semaphore(jobs * 2);
+    }
+
+    //Compresses every image, returning the number that failed
+    public int compressAll(List<String> inputPaths) throws IOException {
+        if (outputDirectory != null) {
+            Files.createDirectories(Paths.get(outputDirectory));
+        }
+        long start = System.nanoTime();
+        List<String> outputPaths = resolveOutputPaths(inputPaths);
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = createExecutor();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < inputPaths.size(); i++) {
+                String inputPath = inputPaths.get(i);
+                String outputPath = outputPaths.get(i);
+                if (outputPath == null) {
+                    failures.incrementAndGet();
+                    continue;
+                }
+                futures.add(executor.submit(() -> {
+                    if (!compress(inputPath, outputPath)) {
+                        failures.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    //compress catches everything, so this is only reached if interrupted
+                    throw new IOException("Batch interrupted: " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        results.println("Batch: " + (inputPaths.size() - failures.get()) + " OK, " + failures.get() + " failed, " +
+                (System.nanoTime() - start) / 1_000_000 + " ms");
+        return failures.get();
+    }
+
+    //Output path of each input, or null for an input that failed, with its FAILED line printed.
+    //Later inputs whose output path is taken get a numeric suffix, so no two jobs write the same file.
+    private List<String> resolveOutputPaths(List<String> inputPaths) {
+        Set<String> canonicalInputPaths = new HashSet<>();
+        for (String inputPath : inputPaths) {
+            try {
+                canonicalInputPaths.add(new File(inputPath).getCanonicalPath());
+            } catch (IOException e) {
+                //Fails when its output path is resolved
+            }
+        }
+        Set<String> canonicalInputsSeen = new HashSet<>();
+        Set<String> taken = new HashSet<>();
+        List<String> outputPaths = new ArrayList<>();
+        for (String inputPath : inputPaths) {
+            String outputPath;
+            try {
+                if (!canonicalInputsSeen.add(new File(inputPath).getCanonicalPath())) {
+                    throw new IOException("Input listed more than once");
+                }
+                String defaultPath = FilePathsAndImageIO.validateOutputPath(outputDirectory, inputPath, k,
+                        FilePathsAndImageIO.getDefaultFormat(inputPath, properties));
+                outputPath = defaultPath;
+                //Never writes over an input either
+                for (int suffix = 2; taken.contains(outputPath) || canonicalInputPaths.contains(outputPath); suffix++) {
+                    outputPath = addSuffix(defaultPath, suffix);
+                }
+                taken.add(outputPath);
+            } catch (IOException e) {
+                results.println("FAILED\t0\t" + inputPath + "\t" + e);
+                outputPath = null;
+            }
+            outputPaths.add(outputPath);
+        }
+        return outputPaths;
+    }
+
+    //"x-output-4.jpg" with suffix 2 is "x-output-4-2.jpg"
+    private static String addSuffix(String path, int suffix) {
+        int i = path.lastIndexOf('.');
+        if (i <= path.lastIndexOf(File.separatorChar)) {
+            return path + "-" + suffix;
+        }
+        return path.substring(0, i) + "-" + suffix + path.substring(i);
+    }
+
+    private ExecutorService createExecutor() {
+        if (virtualThreads) {
+            try {
+                //Looked up at runtime so this still compiles and runs on JDKs without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                results.println("Virtual threads are not available, using " + jobs + " platform threads.");
+            }
+        }
+        return Executors.newFixedThreadPool(jobs);
+    }
+
+    //Returns whether the image was compressed
+    private boolean compress(String inputPath, String outputPath) {
+        long start = System.nanoTime();
+        try {
+            inMemory.acquire();
+            try {
+                if (RawPixelIO.isRawFile(inputPath)) {
+                    compressing.acquire();
+                    try {
+                        RawPixelIO.compressImageToKColors(inputPath, outputPath, k, properties);
+                    } finally {
+                        compressing.release();
+                    }
+                }
+                else if (properties.containsKey("streaming") && properties.get("streaming").equals("true")) {
+                    compressing.acquire();
+                    try {
+                        StreamingCompression.compressImageToKColors(inputPath, outputPath, k, properties);
+                    } finally {
+                        compressing.release();
+                    }
+                }
+                else {
+                    BufferedImage image = FilePathsAndImageIO.readImage(inputPath);
+                    compressing.acquire();
+                    try {
+                        image = ImageManipulation.compressImageToKColors(image, k, properties);
+                    } finally {
+                        compressing.release();
+                    }
+                    FilePathsAndImageIO.writeImage(image, outputPath);
+                }
+            } finally {
+                inMemory.release();
+            }
+            results.println("OK\t" + (System.nanoTime() - start) / 1_000_000 + "\t" + inputPath + "\t" + outputPath);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            results.println("FAILED\t" + (System.nanoTime() - start) / 1_000_000 + "\t" + inputPath + "\tInterrupted");
+        } catch (Exception | OutOfMemoryError e) {
+            results.println("FAILED\t" + (System.nanoTime() - start) / 1_000_000 + "\t" + inputPath + "\t" + e);
+        }
+        return false;
+    }
+
+    //Lists the input paths of a directory (its image files), a glob, a manifest file, or "-" for standard input
+    public static List<String> listInputPaths(String input) throws IOException {
+        if (input.equals("-")) {
+            return readManifest(new BufferedReader(new InputStreamReader(System.in)));
+        }
+        File inputFile = new File(input);
+        if (inputFile.isDirectory()) {
+            Set<String> suffixes = new HashSet<>(Arrays.asList(ImageIO.getReaderFileSuffixes()));
+            suffixes.add(RawPixelIO.FILE_EXTENSION);
+            try (Stream<Path> files = Files.list(inputFile.toPath())) {
+                return files.filter(Files::isRegularFile)
+                        .filter(path -> suffixes.contains(getSuffix(path.getFileName().toString())))
+                        .map(Path::toString)
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+        if (input.contains("*") || input.contains("?") || input.contains("[") || input.contains("{")) {
+            return listGlob(input);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(inputFile.toPath())) {
+            return readManifest(reader);
+        }
+    }
+
+    //Non-empty lines, except comments starting with "#"
+    private static List<String> readManifest(BufferedReader reader) throws IOException {
+        List<String> inputPaths = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                inputPaths.add(line);
+            }
+        }
+        return inputPaths;
+    }
+
+    //Files matching the glob, searched for from the directory before the first wildcard
+    private static List<String> listGlob(String glob) throws IOException {
+        int firstWildcard = glob.length();
+        for (char wildcard : new char[] {'*', '?', '[', '{'}) {
+            int i = glob.indexOf(wildcard);
+            if (i != -1) {
+                firstWildcard = Math.min(firstWildcard, i);
+            }
+        }
+        int lastSeparator = glob.lastIndexOf(File.separatorChar, firstWildcard);
+        Path baseDirectory = Paths.get(lastSeparator == -1 ? "." : glob.substring(0, lastSeparator + 1));
+        //Matched against paths relative to the base directory, as the base directory may be written differently
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(lastSeparator + 1));
+        try (Stream<Path> files = Files.walk(baseDirectory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(baseDirectory.relativize(path)))
+                    .map(Path::toString)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String getSuffix(String fileName) {
+        int i = fileName.lastIndexOf('.');
+        return i == -1 ? "" : fileName.substring(i + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -3,10 +3,29 @@ import java.util.List;
 
 public class Centroid {
     private List<DataPoint> dataPoints = new ArrayList<>();
+    //The exact mean of the data points, rounded to centre
+    private double[] centreCoords;
     private DataPoint centre;
 
     public Centroid(DataPoint centre) {
         this.centre = centre;
+        this.centreCoords = new double[centre.getCoords().length];
+        for (int i = 0; i < centreCoords.length; i++) {
+            centreCoords[i] = centre.getCoord(i);
+        }
+    }
+
+    public Centroid(double[] centreCoords) {
+        this.centreCoords = centreCoords;
+        this.centre = round(centreCoords);
+    }
+
+    private static DataPoint round(double[] coords) {
+        int[] roundedCoords = new int[coords.length];
+        for (int i = 0; i < coords.length; i++) {
+            roundedCoords[i] = (int) Math.round(coords[i]);
+        }
+        return new DataPoint(roundedCoords);
     }
 
     public void resetDataPoints(){
@@ -22,26 +41,41 @@ public class Centroid {
     }
 
     public void reassignCentre(){
-        int[] newCentreCoords = new int[centre.getCoords().length];
-        int[] coords = centre.getCoords();
         if (dataPoints.size() == 0){
             return;
         }
-        for (int i = 0; i < coords.length; i++) {
-            int sum = 0;
+        double[] newCentreCoords = new double[centreCoords.length];
+        for (int i = 0; i < newCentreCoords.length; i++) {
+            //A long, as an int overflows for clusters of more than 2^23 data points
+            long sum = 0;
             for (DataPoint dataPoint : dataPoints){
                 sum += dataPoint.getCoord(i);
             }
-            int mean = sum / dataPoints.size();
-            newCentreCoords[i] = mean;
+            newCentreCoords[i] = (double) sum / dataPoints.size();
+        }
+        centreCoords = newCentreCoords;
+        centre = round(newCentreCoords);
+    }
+
+    //Squared distance from the data point to the exact centre
+    public double squaredDistance(DataPoint dataPoint){
+        double sumOfSquares = 0;
+        for (int i = 0; i < centreCoords.length; i++) {
+            double difference = dataPoint.getCoord(i) - centreCoords[i];
+            sumOfSquares += difference * difference;
         }
-        centre = new DataPoint(newCentreCoords);
+        return sumOfSquares;
     }
 
+    //The centre rounded to the nearest integer coordinates
     public DataPoint getCentre() {
         return centre;
     }
 
+    public double[] getCentreCoords() {
+        return centreCoords;
+    }
+
     public List<DataPoint> getDataPoints() {
         return dataPoints;
     }
@@ -0,0 +1,330 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Seeding methods for the initial centroids of k-means, which choose data points that are spread out,
+ *  so fewer iterations are needed and fewer centroids are duplicated or left empty than with random seeding.
+ * Points are chosen with a probability proportional to their weight times their squared distance to the
+ *  closest centre chosen so far (D^2 sampling).
+ * The passes over the points run on the pool, if one is given, in fixed size chunks that are combined in order,
+ *  so the centres chosen for a seed do not depend on the number of threads.
+ * The arrays of a value per point are kept in Buffers, which a PackedKMeansEngine keeps between seedings, so they
+ *  aren't allocated again for every image of a KMeansSession or every k tried with "auto-k".
+ */
+public class CentroidSeeding {
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final PackedDataPoints points;
+    private final int[][] channels;
+    private final int numCoords;
+    private final int size;
+    private final Random rnd;
+    //null to run on the calling thread
+    private final ForkJoinPool pool;
+    private final int numChunks;
+
+    private final Buffers buffers;
+    //minDistances[pointIndex] is the squared distance from the point to the closest centre chosen so far
+    private final long[] minDistances;
+    //chunkPotentials[chunk] is the sum of the weighted minDistances of the chunk's points
+    private final long[] chunkPotentials;
+
+    public CentroidSeeding(PackedDataPoints points, Random rnd, ForkJoinPool pool) {
+        this(points, rnd, pool, new Buffers());
+    }
+
+    //Seeds using the arrays of the buffers, growing them if there are more points than they have room for
+    public CentroidSeeding(PackedDataPoints points, Random rnd, ForkJoinPool pool, Buffers buffers) {
+        this.points = points;
+        this.numCoords = points.getNumCoords();
+        this.channels = new int[numCoords][];
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            channels[coordIndex] = points.getChannel(coordIndex);
+        }
+        this.size = points.size();
+        this.rnd = rnd;
+        this.pool = pool;
+        this.numChunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.buffers = buffers;
+        if (buffers.minDistances.length < size) {
+            buffers.minDistances = new long[size];
+        }
+        if (buffers.chunkPotentials.length < numChunks) {
+            buffers.chunkPotentials = new long[numChunks];
+            buffers.candidatePotentials = new long[numChunks];
+        }
+        this.minDistances = buffers.minDistances;
+        this.chunkPotentials = buffers.chunkPotentials;
+    }
+
+    //k-means++: each centre is a single D^2 sample.
+    //Greedy k-means++ takes localTrials samples for each centre and keeps the one that lowers the potential most.
+    public int[][] kMeansPlusPlus(int k, int localTrials) {
+        if (localTrials < 1) {
+            throw new IllegalArgumentException("Number of local trials must be at least 1: " + localTrials);
+        }
+        return kMeansPlusPlus(new int[][] {getCoords(points.sampleWeighted(rnd))}, k, localTrials);
+    }
+
+    //k-means++ carried on from the initial centres, which are the first centres returned
+    public int[][] kMeansPlusPlus(int[][] initialCentres, int k, int localTrials) {
+        if (localTrials < 1) {
+            throw new IllegalArgumentException("Number of local trials must be at least 1: " + localTrials);
+        }
+        if (initialCentres.length == 0 || initialCentres.length > k) {
+            throw new IllegalArgumentException("Number of initial centres must be between 1 and k: " + initialCentres.length);
+        }
+        int[][] centres = new int[k][];
+        System.arraycopy(initialCentres, 0, centres, 0, initialCentres.length);
+        Arrays.fill(minDistances, 0, size, Long.MAX_VALUE);
+        long potential = addCentres(initialCentres, initialCentres.length, null, 0);
+
+        int[] candidates = new int[localTrials];
+        long[] candidatePotentials = buffers.candidatePotentials;
+        for (int centreIndex = initialCentres.length; centreIndex < k; centreIndex++) {
+            if (potential == 0) {
+                //Every point is already a centre, so the remaining centres can only be duplicates
+                centres[centreIndex] = getCoords(points.sampleWeighted(rnd));
+                continue;
+            }
+            int chosen = sampleByPotential(potential);
+            if (localTrials > 1) {
+                candidates[0] = chosen;
+                for (int trial = 1; trial < localTrials; trial++) {
+                    candidates[trial] = sampleByPotential(potential);
+                }
+                long minPotential = Long.MAX_VALUE;
+                for (int candidate : candidates) {
+                    long candidatePotential = potentialWithCentre(getCoords(candidate), candidatePotentials);
+                    if (candidatePotential < minPotential) {
+                        minPotential = candidatePotential;
+                        chosen = candidate;
+                    }
+                }
+            }
+            centres[centreIndex] = getCoords(chosen);
+            potential = addCentre(centres[centreIndex], null, 0);
+        }
+        return centres;
+    }
+
+    //k-means|| (scalable k-means++): over a few rounds, every point is sampled independently with a probability of
+    // oversamplingFactor * k times its share of the potential. The candidates are then weighted by the points
+    // closest to them, and reduced to k centres with k-means++.
+    public int[][] kMeansParallel(int k, int rounds, double oversamplingFactor) {
+        int first = points.sampleWeighted(rnd);
+        int[] candidates = new int[] {first};
+        int numCandidates = 1;
+        //nearestCandidates[pointIndex] is the index in candidates of the closest candidate chosen so far
+        if (buffers.nearestCandidates.length < size) {
+            buffers.nearestCandidates = new int[size];
+        }
+        int[] nearestCandidates = buffers.nearestCandidates;
+        Arrays.fill(minDistances, 0, size, Long.MAX_VALUE);
+        long potential = addCentre(getCoords(first), nearestCandidates, 0);
+
+        double expectedSamples = oversamplingFactor * k;
+        int[][] chunkSamples = new int[numChunks][];
+        int[] chunkNumSamples = new int[numChunks];
+        for (int round = 0; round < rounds && potential > 0; round++) {
+            long roundSeed = rnd.nextLong();
+            double samplingScale = expectedSamples / potential;
+            forEachChunk(chunk -> {
+                //Each chunk has its own generator, seeded by its position, so the samples don't depend on the threads
+                Random chunkRnd = new Random(roundSeed + chunk);
+                int[] samples = new int[16];
+                int numSamples = 0;
+                for (int pointIndex = chunkStart(chunk), end = chunkStart(chunk + 1); pointIndex < end; pointIndex++) {
+                    double probability = samplingScale * points.getWeight(pointIndex) * minDistances[pointIndex];
+                    if (chunkRnd.nextDouble() < probability) {
+                        if (numSamples == samples.length) {
+                            samples = Arrays.copyOf(samples, numSamples * 2);
+                        }
+                        samples[numSamples++] = pointIndex;
+                    }
+                }
+                chunkSamples[chunk] = samples;
+                chunkNumSamples[chunk] = numSamples;
+            });
+            int numRoundSamples = 0;
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                numRoundSamples += chunkNumSamples[chunk];
+            }
+            if (numCandidates + numRoundSamples > candidates.length) {
+                candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, numCandidates + numRoundSamples));
+            }
+            int[][] roundCentres = new int[numRoundSamples][];
+            int roundSample = 0;
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                for (int sample = 0; sample < chunkNumSamples[chunk]; sample++) {
+                    int pointIndex = chunkSamples[chunk][sample];
+                    candidates[numCandidates + roundSample] = pointIndex;
+                    roundCentres[roundSample++] = getCoords(pointIndex);
+                }
+            }
+            potential = addCentres(roundCentres, numRoundSamples, nearestCandidates, numCandidates);
+            numCandidates += numRoundSamples;
+        }
+
+        int[][] candidateChannels = new int[numCoords][numCandidates];
+        for (int candidate = 0; candidate < numCandidates; candidate++) {
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                candidateChannels[coordIndex][candidate] = channels[coordIndex][candidates[candidate]];
+            }
+        }
+        long[] candidateWeights = new long[numCandidates];
+        for (int pointIndex = 0; pointIndex < size; pointIndex++) {
+            candidateWeights[nearestCandidates[pointIndex]] += points.getWeight(pointIndex);
+        }
+        int[] weights = new int[numCandidates];
+        for (int candidate = 0; candidate < numCandidates; candidate++) {
+            //A candidate with the same coordinates as an earlier one has no points, but weights must be positive
+            weights[candidate] = (int) Math.max(1, Math.min(Integer.MAX_VALUE, candidateWeights[candidate]));
+        }
+        PackedDataPoints weightedCandidates = new PackedDataPoints(candidateChannels, weights);
+        return new CentroidSeeding(weightedCandidates, rnd, null).kMeansPlusPlus(k, 1);
+    }
+
+    private long addCentre(int[] centre, int[] nearestCandidates, int candidateIndex) {
+        return addCentres(new int[][] {centre}, 1, nearestCandidates, candidateIndex);
+    }
+
+    //Lowers minDistances to the distances to the first numCentres new centres, in a single pass over the points.
+    //If nearestCandidates is given, the closest new centres are recorded in it, numbered from firstCandidateIndex.
+    //Returns the new potential.
+    private long addCentres(int[][] centres, int numCentres, int[] nearestCandidates, int firstCandidateIndex) {
+        forEachChunk(chunk -> {
+            long chunkPotential = 0;
+            for (int pointIndex = chunkStart(chunk), end = chunkStart(chunk + 1); pointIndex < end; pointIndex++) {
+                for (int centreIndex = 0; centreIndex < numCentres; centreIndex++) {
+                    long distance = squaredDistance(pointIndex, centres[centreIndex]);
+                    if (distance < minDistances[pointIndex]) {
+                        minDistances[pointIndex] = distance;
+                        if (nearestCandidates != null) {
+                            nearestCandidates[pointIndex] = firstCandidateIndex + centreIndex;
+                        }
+                    }
+                }
+                chunkPotential += points.getWeight(pointIndex) * minDistances[pointIndex];
+            }
+            chunkPotentials[chunk] = chunkPotential;
+        });
+        return sum(chunkPotentials, numChunks);
+    }
+
+    //The potential if the centre were added, without changing minDistances
+    private long potentialWithCentre(int[] centre, long[] candidatePotentials) {
+        forEachChunk(chunk -> {
+            long chunkPotential = 0;
+            for (int pointIndex = chunkStart(chunk), end = chunkStart(chunk + 1); pointIndex < end; pointIndex++) {
+                long distance = Math.min(minDistances[pointIndex], squaredDistance(pointIndex, centre));
+                chunkPotential += points.getWeight(pointIndex) * distance;
+            }
+            candidatePotentials[chunk] = chunkPotential;
+        });
+        return sum(candidatePotentials, numChunks);
+    }
+
+    //Picks a point index with a probability proportional to its weighted minDistance, finding the chunk first
+    private int sampleByPotential(long potential) {
+        long target = (long) (rnd.nextDouble() * potential);
+        int chunk = 0;
+        while (chunk < numChunks - 1 && target >= chunkPotentials[chunk]) {
+            target -= chunkPotentials[chunk];
+            chunk++;
+        }
+        int lastPositive = -1;
+        for (int pointIndex = chunkStart(chunk), end = chunkStart(chunk + 1); pointIndex < end; pointIndex++) {
+            long pointPotential = points.getWeight(pointIndex) * minDistances[pointIndex];
+            if (pointPotential > 0) {
+                if (target < pointPotential) {
+                    return pointIndex;
+                }
+                target -= pointPotential;
+                lastPositive = pointIndex;
+            }
+        }
+        //Only reached through floating point rounding of the target
+        return lastPositive != -1 ? lastPositive : points.sampleWeighted(rnd);
+    }
+
+    private long squaredDistance(int pointIndex, int[] centre) {
+        long distance = 0;
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            long difference = channels[coordIndex][pointIndex] - centre[coordIndex];
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    private int[] getCoords(int pointIndex) {
+        int[] coords = new int[numCoords];
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            coords[coordIndex] = channels[coordIndex][pointIndex];
+        }
+        return coords;
+    }
+
+    private int chunkStart(int chunk) {
+        return Math.min(size, chunk * CHUNK_SIZE);
+    }
+
+    //Sum of the first length values
+    private static long sum(long[] values, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    private void forEachChunk(IntConsumer chunkAction) {
+        if (pool == null || numChunks == 1) {
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                chunkAction.accept(chunk);
+            }
+        }
+        else {
+            pool.invoke(new ChunkAction(chunkAction, 0, numChunks));
+        }
+    }
+
+    //Arrays of a value per point, and per chunk, that can be used by one seeding after another.
+    //Each is only grown when a seeding has more points than it has room for.
+    public static class Buffers {
+        private long[] minDistances = new long[0];
+        //Only used by k-means||
+        private int[] nearestCandidates = new int[0];
+        private long[] chunkPotentials = new long[0];
+        private long[] candidatePotentials = new long[0];
+    }
+
+    //Splits the chunks in half until each task runs the action on a single chunk
+    private static class ChunkAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer chunkAction;
+        private final int fromChunk;
+        private final int toChunk;
+
+        ChunkAction(IntConsumer chunkAction, int fromChunk, int toChunk) {
+            this.chunkAction = chunkAction;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                chunkAction.accept(fromChunk);
+            }
+            else {
+                int middle = (fromChunk + toChunk) >>> 1;
+                invokeAll(new ChunkAction(chunkAction, fromChunk, middle), new ChunkAction(chunkAction, middle, toChunk));
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Colour spaces the colours of an image can be clustered in.
+ * Distances in sRGB don't match how different colours look, so clustering in CIELAB or OKLab, where they roughly do,
+ *  gives palettes that look better for the same k.
+ * Coordinates are fixed point ints, so the packed engine can store them as it stores RGB values: each space scales
+ *  its values to keep about the precision of 8 bit sRGB.
+ * Colours are converted once, when the data points are made or first looked up in a Palette, through a table of
+ *  the linear value of every 8 bit sRGB value. The three coordinates of a colour are packed into a long, so converting
+ *  allocates nothing, and a colour repeated in an image is copied from a cache of recent conversions.
+ */
+public enum ColourSpace {
+    SRGB("srgb", 1) {
+        @Override
+        long fromLinear(double red, double green, double blue) {
+            return pack(linearToSRGB(red) * 255, linearToSRGB(green) * 255, linearToSRGB(blue) * 255);
+        }
+
+        @Override
+        double[] toLinear(double c0, double c1, double c2) {
+            return new double[] {sRGBToLinear(c0 / 255), sRGBToLinear(c1 / 255), sRGBToLinear(c2 / 255)};
+        }
+    },
+    LINEAR("linear", 65535) {
+        @Override
+        long fromLinear(double red, double green, double blue) {
+            return pack(red, green, blue);
+        }
+
+        @Override
+        double[] toLinear(double c0, double c1, double c2) {
+            return new double[] {c0, c1, c2};
+        }
+    },
+    //CIE L*a*b* with a D65 white point
+    CIELAB("cielab", 100) {
+        @Override
+        long fromLinear(double red, double green, double blue) {
+            double x = (0.4124564 * red + 0.3575761 * green + 0.1804375 * blue) / WHITE_X;
+            double y = 0.2126729 * red + 0.7151522 * green + 0.0721750 * blue;
+            double z = (0.0193339 * red + 0.1191920 * green + 0.9503041 * blue) / WHITE_Z;
+            double fx = labF(x);
+            double fy = labF(y);
+            double fz = labF(z);
+            return pack(116 * fy - 16, 500 * (fx - fy), 200 * (fy - fz));
+        }
+
+        @Override
+        double[] toLinear(double lightness, double a, double b) {
+            double fy = (lightness + 16) / 116;
+            double x = labInverseF(fy + a / 500) * WHITE_X;
+            double y = labInverseF(fy);
+            double z = labInverseF(fy - b / 200) * WHITE_Z;
+            return new double[] {
+                    3.2404542 * x - 1.5371385 * y - 0.4985314 * z,
+                    -0.9692660 * x + 1.8760108 * y + 0.0415560 * z,
+                    0.0556434 * x - 0.2040259 * y + 1.0572252 * z};
+        }
+    },
+    //OKLab, by Bjorn Ottosson
+    OKLAB("oklab", 10000) {
+        @Override
+        long fromLinear(double red, double green, double blue) {
+            double l = Math.cbrt(0.4122214708 * red + 0.5363325363 * green + 0.0514459929 * blue);
+            double m = Math.cbrt(0.2119034982 * red + 0.6806995451 * green + 0.1073969566 * blue);
+            double s = Math.cbrt(0.0883024619 * red + 0.2817188376 * green + 0.6299787005 * blue);
+            return pack(
+                    0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s,
+                    1.9779984951 * l - 2.4285922050 * m + 0.4505937099 * s,
+                    0.0259040371 * l + 0.7827717662 * m - 0.8086757660 * s);
+        }
+
+        @Override
+        double[] toLinear(double lightness, double a, double b) {
+            double l = lightness + 0.3963377774 * a + 0.2158037573 * b;
+            double m = lightness - 0.1055613458 * a - 0.0638541728 * b;
+            double s = lightness - 0.0894841775 * a - 1.2914855480 * b;
+            l = l * l * l;
+            m = m * m * m;
+            s = s * s * s;
+            return new double[] {
+                    4.0767416621 * l - 3.3077115913 * m + 0.2309699292 * s,
+                    -1.2684380046 * l + 2.6097574011 * m - 0.3413193965 * s,
+                    -0.0041960863 * l - 0.7034186168 * m + 1.7076147010 * s};
+        }
+    };
+
+    private static final double WHITE_X = 0.95047;
+    private static final double WHITE_Z = 1.08883;
+    private static final double LAB_DELTA = 6.0 / 29;
+    //LINEAR_TABLE[value] is the linear intensity of the 8 bit sRGB value
+    private static final double[] LINEAR_TABLE = new double[256];
+    //Bits of each coordinate packed into a long, signed, enough for every space's range at its scale
+    private static final int COORD_BITS = 21;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+    private static final int CONVERSION_CACHE_BITS = 16;
+    //Entries of the cache of recent conversions used by convertFromRGB
+    public static final int CONVERSION_CACHE_SIZE = 1 << CONVERSION_CACHE_BITS;
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            LINEAR_TABLE[value] = sRGBToLinear(value / 255.0);
+        }
+    }
+
+    private final String propertyValue;
+    //Coordinates are the colour space's values times the scale, rounded
+    private final double scale;
+
+    ColourSpace(String propertyValue, double scale) {
+        this.propertyValue = propertyValue;
+        this.scale = scale;
+    }
+
+    //Packed fixed point coordinates of the linear RGB intensities, from 0 to 1
+    abstract long fromLinear(double red, double green, double blue);
+
+    //Linear RGB intensities of the unscaled coordinates
+    abstract double[] toLinear(double c0, double c1, double c2);
+
+    //The colour space given by the "colour-space" property, sRGB by default
+    public static ColourSpace fromProperties(Map<String, String> properties) {
+        if (!properties.containsKey("colour-space")) {
+            return SRGB;
+        }
+        for (ColourSpace colourSpace : values()) {
+            if (colourSpace.propertyValue.equals(properties.get("colour-space"))) {
+                return colourSpace;
+            }
+        }
+        throw new IllegalArgumentException("Invalid \"colour-space\" value. " +
+                "Must be \"srgb\", \"linear\", \"cielab\", or \"oklab\".");
+    }
+
+    //Fixed point coordinates of the (A)RGB value, ignoring alpha
+    public int[] toCoords(int rgbValue) {
+        long coords = toPackedCoords(rgbValue);
+        return new int[] {getCoord(coords, 0), getCoord(coords, 1), getCoord(coords, 2)};
+    }
+
+    //Fixed point coordinates of the (A)RGB value, ignoring alpha, packed into a long to be read with getCoord
+    public long toPackedCoords(int rgbValue) {
+        int red = (rgbValue >> 16) & 0xFF;
+        int green = (rgbValue >> 8) & 0xFF;
+        int blue = rgbValue & 0xFF;
+        if (this == SRGB) {
+            return ((long) red << 2 * COORD_BITS) | ((long) green << COORD_BITS) | blue;
+        }
+        return fromLinear(LINEAR_TABLE[red], LINEAR_TABLE[green], LINEAR_TABLE[blue]);
+    }
+
+    //Coordinate 0, 1, or 2 of coordinates packed by toPackedCoords
+    public static int getCoord(long packedCoords, int index) {
+        //Shifted up to the top bits, then back down to sign extend
+        return (int) ((packedCoords << (64 - (3 - index) * COORD_BITS)) >> (64 - COORD_BITS));
+    }
+
+    //Scales, rounds, and packs the unscaled coordinates
+    long pack(double c0, double c1, double c2) {
+        return ((Math.round(c0 * scale) & COORD_MASK) << 2 * COORD_BITS)
+                | ((Math.round(c1 * scale) & COORD_MASK) << COORD_BITS)
+                | (Math.round(c2 * scale) & COORD_MASK);
+    }
+
+    //The RGB value closest to the fixed point coordinates, clamped to the sRGB gamut
+    public int toRGB(double[] coords) {
+        if (this == SRGB) {
+            return (clamp(Math.round(coords[0])) << 16) | (clamp(Math.round(coords[1])) << 8) | clamp(Math.round(coords[2]));
+        }
+        double[] linear = toLinear(coords[0] / scale, coords[1] / scale, coords[2] / scale);
+        return (linearToValue(linear[0]) << 16) | (linearToValue(linear[1]) << 8) | linearToValue(linear[2]);
+    }
+
+    //Converts the coordinates of the points from RGB values to this colour space, in place
+    public void convertFromRGB(PackedDataPoints points) {
+        if (this == SRGB) {
+            return;
+        }
+        convertFromRGB(points, new long[CONVERSION_CACHE_SIZE]);
+    }
+
+    //Converts the coordinates of the points in place, using the cache, of CONVERSION_CACHE_SIZE entries, to remember
+    // the last point each slot's colour was converted for, so a repeated colour is copied from it.
+    //Images repeat colours close together, so a small cache catches most repeats. It is cleared first, so it can be
+    // reused between calls, as a KMeansSession does.
+    public void convertFromRGB(PackedDataPoints points, long[] cache) {
+        if (this == SRGB) {
+            return;
+        }
+        if (cache.length != CONVERSION_CACHE_SIZE) {
+            throw new IllegalArgumentException("Conversion cache must have " + CONVERSION_CACHE_SIZE + " entries: " +
+                    cache.length + " given");
+        }
+        //An entry is the RGB value above the index of its point, and -1 before any colour is converted for its slot
+        Arrays.fill(cache, -1);
+        int[] red = points.getChannel(0);
+        int[] green = points.getChannel(1);
+        int[] blue = points.getChannel(2);
+        for (int i = 0; i < points.size(); i++) {
+            int rgb = (red[i] << 16) | (green[i] << 8) | blue[i];
+            int slot = (rgb * 0x9E3779B1) >>> (32 - CONVERSION_CACHE_BITS);
+            long entry = cache[slot];
+            if ((entry >>> 32) == rgb) {
+                int converted = (int) entry;
+                red[i] = red[converted];
+                green[i] = green[converted];
+                blue[i] = blue[converted];
+            }
+            else {
+                long coords = toPackedCoords(rgb);
+                red[i] = getCoord(coords, 0);
+                green[i] = getCoord(coords, 1);
+                blue[i] = getCoord(coords, 2);
+                cache[slot] = ((long) rgb << 32) | i;
+            }
+        }
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    private static int linearToValue(double linear) {
+        return clamp(Math.round(linearToSRGB(linear) * 255));
+    }
+
+    private static double sRGBToLinear(double value) {
+        return value <= 0.04045 ? value / 12.92 : Math.pow((value + 0.055) / 1.055, 2.4);
+    }
+
+    private static double linearToSRGB(double linear) {
+        if (linear <= 0) {
+            return 0;
+        }
+        return linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+    }
+
+    private static double labF(double t) {
+        return t > LAB_DELTA * LAB_DELTA * LAB_DELTA ? Math.cbrt(t) : t / (3 * LAB_DELTA * LAB_DELTA) + 4.0 / 29;
+    }
+
+    private static double labInverseF(double t) {
+        return t > LAB_DELTA ? t * t * t : 3 * LAB_DELTA * LAB_DELTA * (t - 4.0 / 29);
+    }
+
+    @Override
+    public String toString() {
+        return propertyValue;
+    }
+
+    //Coordinates per unit of the colour space
+    public double getScale() {
+        return scale;
+    }
+}
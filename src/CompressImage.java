@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -5,34 +6,144 @@ import java.util.*;
  * Class to use the FilePathsAndImageIO and ImageManipulation classes to compress an image into a number of colors.
  */
 public class CompressImage {
-    public static final String USAGE = "java CompressImage (options) <image input path> <No. colors> (output image path/directory)";
+    //Images can also be raw pixel files, with the extension ".raw", as described by RawPixelIO
+    public static final String USAGE = "java CompressImage (options) <image input path> <No. colors> (output image path/directory)\n" +
+            "java CompressImage --auto-k (options) <image input path> <Most colors> (output image path/directory)\n" +
+            "java CompressImage --batch (options) <directory, glob, manifest file, or - for stdin> <No. colors> (output directory)";
     public static final String OPTIONS = "-h, --help: gives info on usage and options\n" +
+            "-a, --algorithm ALGORITHM: specifies the k-means clustering ALGORITHM, where the ALGORITHM is one of:\n" +
+               "\t\"lloyd\" (default): calculates the distance from every pixel to every centroid each iteration\n" +
+               "\t\"hamerly\": keeps bounds on the distances to skip most calculations, with the same result. Requires the packed engine.\n" +
+               "\t\"mini-batch\": moves the centroids towards small random batches of pixels, then does one full pass. Requires the packed engine.\n" +
             "-i, --initialization METHOD: specifies centroid initialization METHOD in the k-means clustering algorithm, where the METHOD is one of:\n" +
                "\t\"random coordinate\"\n" +
                "\t\"random data point\" (default)\n" +
+               "\t\"k++\": k-means++, picks data points far from the centroids already picked\n" +
+               "\t\"greedy k++\": k-means++, keeping the best of several data points for each centroid\n" +
+               "\t\"k-means||\": scalable k-means++, picks many data points in a few parallel passes then reduces them with k-means++\n" +
+               "\t\"palette\": starts from the colours of the --initial-palette\n" +
+            "-I, --initial-palette FILE: starts the k-means clustering from the colours in FILE, one \"#RRGGBB\" per line, e.g. a palette\n" +
+               "\texported from a similar image or an earlier frame. If FILE has fewer than k colours the rest are picked by k-means++.\n" +
+            "-E, --export-palette FILE: writes the colours of the palette to FILE, one \"#RRGGBB\" per line. Not available in batch mode.\n" +
+            "-b, --batch: compresses every image listed by the input, which is a directory, a glob, a file of image paths, or - to\n" +
+               "\tread image paths from standard input, printing a line for each image with its status and time in milliseconds.\n" +
+            "-k, --auto-k: chooses the No. colors, up to the number given, adding a colour at a time to the palette of the last,\n" +
+               "\tuntil a colour lowers the inertia by less than the fraction \"elbow\" (default 0.1), or the mean colour error is at\n" +
+               "\tmost \"max-error\", e.g. -p max-error=12 for an RMS error of 12 out of 255 in sRGB.\n" +
+            "-j, --jobs JOBS: compresses up to JOBS images at once in batch mode (default the number of processors).\n" +
+            "-c, --colour-space SPACE: clusters the colours in SPACE, one of \"srgb\" (default), \"linear\" (linear RGB),\n" +
+               "\t\"cielab\", or \"oklab\". The perceptual spaces CIELAB and OKLab give better looking palettes for the same k.\n" +
+            "-e, --engine ENGINE: specifies the k-means clustering ENGINE, where the ENGINE is one of:\n" +
+               "\t\"packed\" (default): stores the pixels in primitive arrays\n" +
+               "\t\"object\": stores a DataPoint object for every pixel\n" +
+            "-H, --histogram BITS: clusters the unique colours of the image, weighted by their number of pixels, instead of every pixel.\n" +
+               "\tColours are first quantised to BITS bits per channel, one of 8 (no quantisation), 6, or 5. Requires the packed engine.\n" +
+            "-s, --seed SEED: seeds the random centroid initialization with the integer SEED, for repeatable output.\n" +
+            "-S, --streaming: reads and writes the image in strips of rows, to compress images larger than the memory.\n" +
+               "\tClusters a colour histogram of the image, quantised by --histogram BITS if given. Writes a PNG by default, or a TIFF\n" +
+               "\twith a \".tif\" output path, not a JPEG. Requires the packed engine.\n" +
+            "-t, --threads THREADS: assigns the pixels to centroids, and dithers, on THREADS threads (default 1). Requires the packed engine.\n" +
+            "-P, --palette-cache DIR: caches the palette of every image in DIR, keyed by a hash of its pixels, k, and the options,\n" +
+               "\tso an image compressed before is only recoloured. Palettes are also kept in memory for batch mode.\n" +
+            "-p, --property KEY=VALUE: sets any other property of the k-means clustering algorithm, e.g. \"batch-size=4096\".\n" +
+               "\tThe iterations can be stopped before the centroids stop moving by \"max-iterations\", \"tolerance\" (largest centroid\n" +
+               "\tmovement), \"min-improvement\" (fraction the inertia must fall by), and \"time-limit\" (milliseconds).\n" +
+               "\t\"pyramid=N\" clusters a copy of the image halved N - 1 times first, then refines on larger copies.\n" +
             "-v, --verbose: makes the K Means Algorithm verbose, and output progress information.\n" +
-            "-o, --intermediate-images: outputs an image every iteration of the k-means clustering algorithm.\n" +
+            "-o, --intermediate-images: outputs a downscaled image of the centroids every iteration of the k-means clustering\n" +
+               "\talgorithm to the directory progress-images, written in the background. The properties \"intermediate-every\" N\n" +
+               "\t(every Nth iteration), \"intermediate-size\" (largest side, default 512), \"intermediate-directory\", and\n" +
+               "\t\"intermediate-gif\" FILE (one animated GIF instead) change the output. Not available in batch mode.\n" +
+            "-x, --indexed: writes an indexed image of the palette colours, 1, 2, 4, or 8 bits per pixel, as PNG-8 by default or\n" +
+               "\tGIF. Much smaller and faster to write than an RGB image. k must be at most 256.\n" +
+            "-d, --dither METHOD: dithers the recoloured image, so gradients band less at the same k, where the METHOD is one of:\n" +
+               "\t\"none\" (default): every pixel is the closest palette colour\n" +
+               "\t\"floyd-steinberg\": diffuses each pixel's error to the pixels right of and below it\n" +
+               "\t\"bayer\": ordered dithering with an 8x8 Bayer matrix, which keeps flat areas flat\n" +
+               "\tNot available with --streaming or raw pixel input.\n" +
+            "-m, --metrics FILE: writes a line of JSON to FILE for every iteration of the k-means clustering algorithm, with the time\n" +
+               "\tto assign and update, data points reassigned, inertia, empty centroids, distance calculations, and memory.\n" +
             "EXAMPLE: java CompressImage -i \"random data point\" -v --intermediate-images image-to-compress.jpg 8";
     public static final String DEFAULT_FILE_FORMAT = "jpg";
+    //Indexed images are written as PNG-8, as JPEG can't store a palette
+    public static final String DEFAULT_INDEXED_FILE_FORMAT = "png";
 
     public static void main(String[] args) {
         HashMap<String, String> properties = new HashMap<>();
         List<String> programOperands = new ArrayList<>();
+        boolean batch = false;
         //Can specify default options, different from those in KMeansAlgorithm, here
         for (int i = 0; i < args.length; i++){
             if(args[i].equals("-h") || args[i].equals("--help")){
                 System.out.println(USAGE + "\n" + OPTIONS);
                 return;
             }
+            else if (args[i].equals("-a") || args[i].equals("--algorithm")){
+                properties.put("algorithm", args[++i]);
+            }
             else if (args[i].equals("-i") || args[i].equals("--initialization")){
                 properties.put("initialization", args[++i]);
             }
+            else if (args[i].equals("-I") || args[i].equals("--initial-palette")){
+                properties.put("initial-palette", args[++i]);
+            }
+            else if (args[i].equals("-E") || args[i].equals("--export-palette")){
+                properties.put("export-palette", args[++i]);
+            }
+            else if (args[i].equals("-b") || args[i].equals("--batch")){
+                batch = true;
+            }
+            else if (args[i].equals("-k") || args[i].equals("--auto-k")){
+                properties.put("auto-k", "true");
+            }
+            else if (args[i].equals("-j") || args[i].equals("--jobs")){
+                properties.put("batch-jobs", args[++i]);
+            }
+            else if (args[i].equals("-c") || args[i].equals("--colour-space")){
+                properties.put("colour-space", args[++i]);
+            }
+            else if (args[i].equals("-e") || args[i].equals("--engine")){
+                properties.put("engine", args[++i]);
+            }
+            else if (args[i].equals("-H") || args[i].equals("--histogram")){
+                properties.put("histogram", args[++i]);
+            }
+            else if (args[i].equals("-s") || args[i].equals("--seed")){
+                properties.put("seed", args[++i]);
+            }
+            else if (args[i].equals("-S") || args[i].equals("--streaming")){
+                properties.put("streaming", "true");
+            }
+            else if (args[i].equals("-t") || args[i].equals("--threads")){
+                properties.put("threads", args[++i]);
+            }
+            else if (args[i].equals("-P") || args[i].equals("--palette-cache")){
+                properties.put("palette-cache-dir", args[++i]);
+            }
+            else if (args[i].equals("-p") || args[i].equals("--property")){
+                String property = args[++i];
+                int equals = property.indexOf('=');
+                if (equals == -1){
+                    System.out.println("Properties must be given as KEY=VALUE: " + property + " given.");
+                    return;
+                }
+                properties.put(property.substring(0, equals), property.substring(equals + 1));
+            }
             else if (args[i].equals("-v") || args[i].equals("--verbose")){
                 properties.put("verbose", "true");
             }
             else if (args[i].equals("-o") || args[i].equals("--intermediate-images")){
                 properties.put("intermediate-images", "true");
             }
+            else if (args[i].equals("-x") || args[i].equals("--indexed")){
+                properties.put("indexed", "true");
+            }
+            else if (args[i].equals("-d") || args[i].equals("--dither")){
+                properties.put("dither", args[++i]);
+            }
+            else if (args[i].equals("-m") || args[i].equals("--metrics")){
+                properties.put("metrics-file", args[++i]);
+            }
             else{
                 programOperands.add(args[i]);
             }
@@ -56,8 +167,14 @@ public class CompressImage {
             outputPath = programOperands.get(2);
         }
 
+        if (batch) {
+            compressBatch(inputPath, k, outputPath, properties);
+            return;
+        }
+
         try {
-            outputPath = FilePathsAndImageIO.validateOutputPath(outputPath, inputPath, k);
+            outputPath = FilePathsAndImageIO.validateOutputPath(outputPath, inputPath, k,
+                    FilePathsAndImageIO.getDefaultFormat(inputPath, properties));
         } catch (IOException e) {
             System.out.println("IO Exception occurred: " + e.getMessage());
             return;
@@ -74,4 +191,23 @@ public class CompressImage {
         ImageManipulation.compressImageToKColors(inputPath, outputPath, k, properties);
     }
 
+    private static void compressBatch(String input, int k, String outputDirectory, HashMap<String, String> properties) {
+        if (outputDirectory != null && new File(outputDirectory).isFile()) {
+            System.out.println("The output path must be a directory in batch mode: " + outputDirectory + " given.");
+            return;
+        }
+        int failures;
+        try {
+            List<String> inputPaths = BatchCompression.listInputPaths(input);
+            failures = new BatchCompression(k, outputDirectory, properties, System.out).compressAll(inputPaths);
+        } catch (IOException e) {
+            System.out.println("IO Exception occurred: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
 }
\ No newline at end of file
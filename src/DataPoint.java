@@ -47,15 +47,20 @@ public class DataPoint{
     }
 
     public double distance(DataPoint that){
+        return Math.sqrt(squaredDistance(that));
+    }
+
+    public long squaredDistance(DataPoint that){
         if (this.getCoords().length != that.getCoords().length){
             throw new IllegalArgumentException("Data points must have same number of coordinates to calculate distance: " +
                     this.getCoords().length + " != " + that.getCoords().length);
         }
-        int sumOfSquares = 0;
+        long sumOfSquares = 0;
         for (int i = 0; i < coords.length; i++) {
-            sumOfSquares += Math.pow(coords[i] - that.coords[i], 2);
+            long difference = coords[i] - that.coords[i];
+            sumOfSquares += difference * difference;
         }
-        return Math.sqrt(sumOfSquares);
+        return sumOfSquares;
     }
 
     @Override
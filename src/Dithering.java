@@ -0,0 +1,320 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dithering of an image to the colours of a palette, in the same pass that looks up every pixel's palette colour,
+ *  with the "dither" property:
+ *  "floyd-steinberg": error diffusion, spreading each pixel's error to the pixels right of and below it
+ *  "bayer": ordered dithering, offsetting each pixel by the threshold of an 8x8 Bayer matrix
+ * With the "threads" property, ordered dithering recolours tiles of rows in parallel. Error diffusion runs a row per
+ *  thread in a pipeline, each row following the row above a couple of pixels behind, as a pixel's error only reaches
+ *  the three pixels below it.
+ * The error diffused to a row is kept in a ring of a row per thread plus one, rather than a copy of the whole image.
+ * Errors and thresholds are in sRGB, whatever the colour space the palette was clustered in.
+ */
+public class Dithering {
+    public static final String FLOYD_STEINBERG = "floyd-steinberg";
+    public static final String BAYER = "bayer";
+    //Rows of a tile of ordered dithering, a multiple of the matrix size
+    public static final int TILE_ROWS = 64;
+    //Pixels of a row done between telling the row below, for error diffusion with more than one thread
+    private static final int PROGRESS_PIXELS = 32;
+    private static final int[] BAYER_MATRIX = {
+             0, 32,  8, 40,  2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44,  4, 36, 14, 46,  6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+             3, 35, 11, 43,  1, 33,  9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47,  7, 39, 13, 45,  5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21};
+
+    //Receives the palette index of every pixel of a row, with the row's RGB values.
+    //Called from several threads at once, for different rows.
+    public interface RowWriter {
+        void writeRow(int y, int[] rgbRow, int[] indices);
+    }
+
+    private final String method;
+    private final int threads;
+
+    public Dithering(String method, int threads) {
+        if (!method.equals(FLOYD_STEINBERG) && !method.equals(BAYER)) {
+            throw new IllegalArgumentException("Invalid \"dither\" value. Must be \"none\", \"floyd-steinberg\", or \"bayer\".");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+        }
+        this.method = method;
+        this.threads = threads;
+    }
+
+    //Dithering of the "dither" property, on the "threads" property threads, or null if not dithering
+    public static Dithering fromProperties(Map<String, String> properties) {
+        String method = properties.getOrDefault("dither", "none");
+        if (method.equals("none")) {
+            return null;
+        }
+        int threads = 1;
+        if (properties.containsKey("threads")) {
+            try {
+                threads = Integer.parseInt(properties.get("threads"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid \"threads\" value. Must be an integer.");
+            }
+        }
+        return new Dithering(method, threads);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    //Looks up the dithered palette index of every pixel of the image, giving the writer each row.
+    //The image is only read, so the writer may write the row back to it.
+    public void recolour(BufferedImage image, Palette palette, RowWriter writer) {
+        //Before the threads start, so they share the table
+        palette.prepareTable();
+        if (method.equals(FLOYD_STEINBERG)) {
+            new ErrorDiffusion(image, palette, writer).dither();
+        }
+        else {
+            new OrderedDither(image, palette, writer).dither();
+        }
+    }
+
+    //Runs the task on the dithering's threads, the calling thread being one, throwing the first error of any thread
+    private void runOnThreads(Runnable task, Runnable abort) {
+        if (threads == 1) {
+            task.run();
+            return;
+        }
+        Thread[] workers = new Thread[threads - 1];
+        RuntimeException[] errors = new RuntimeException[1];
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                synchronized (errors) {
+                    if (errors[0] == null) {
+                        errors[0] = e;
+                    }
+                }
+                abort.run();
+            }
+        };
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(guarded, "dithering-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        guarded.run();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while dithering", e);
+            }
+        }
+        if (errors[0] != null) {
+            throw errors[0];
+        }
+    }
+
+    //Reads a row of RGB values, straight from the data buffer of int RGB images
+    private static void readRow(BufferedImage image, int[] pixels, int y, int[] rgbRow) {
+        int width = image.getWidth();
+        if (pixels != null) {
+            System.arraycopy(pixels, y * width, rgbRow, 0, width);
+        }
+        else {
+            image.getRGB(0, y, width, 1, rgbRow, 0, width);
+        }
+    }
+
+    //The data buffer of int RGB images, which can be read as a whole, or null
+    private static int[] getIntPixels(BufferedImage image) {
+        boolean intBuffer = image.getRaster().getParent() == null &&
+                (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB);
+        return intBuffer ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData() : null;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    //Floyd-Steinberg error diffusion, in raster order.
+    //Thread t of T does rows t, t + T, ..., so the row above is always another thread's, and the ring of error rows
+    // has T + 1 rows: the next row's errors go to a ring row last read by this thread's previous row.
+    private class ErrorDiffusion implements Runnable {
+        private final BufferedImage image;
+        private final Palette palette;
+        private final RowWriter writer;
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        //Errors diffused to a row, times 16, 3 channels per pixel with a pixel either side for the edges
+        private final int[][] errorRing;
+        //Progress of the row at each ring index, as row * (width + 1) + pixels done, so an old row is always behind
+        private final AtomicLongArray progress;
+        private final AtomicInteger nextThread = new AtomicInteger();
+        private volatile boolean aborted;
+
+        ErrorDiffusion(BufferedImage image, Palette palette, RowWriter writer) {
+            this.image = image;
+            this.palette = palette;
+            this.writer = writer;
+            width = image.getWidth();
+            height = image.getHeight();
+            pixels = getIntPixels(image);
+            errorRing = new int[threads + 1][3 * (width + 2)];
+            progress = new AtomicLongArray(threads + 1);
+        }
+
+        void dither() {
+            runOnThreads(this, () -> aborted = true);
+        }
+
+        @Override
+        public void run() {
+            int thread = nextThread.getAndIncrement();
+            int[] rgbRow = new int[width];
+            int[] indices = new int[width];
+            for (int y = thread; y < height; y += threads) {
+                int[] errors = errorRing[y % errorRing.length];
+                int[] nextErrors = errorRing[(y + 1) % errorRing.length];
+                Arrays.fill(nextErrors, 0);
+                long rowStart = (long) y * (width + 1);
+                long rowAboveStart = rowStart - (width + 1);
+                long rowAboveDone = y == 0 ? Long.MAX_VALUE : 0;
+                readRow(image, pixels, y, rgbRow);
+                int rightRed = 0;
+                int rightGreen = 0;
+                int rightBlue = 0;
+                for (int x = 0; x < width; x++) {
+                    //The errors of this pixel are final once the row above has done the pixel to its right
+                    long needed = rowAboveStart + Math.min(x + 2, width);
+                    while (rowAboveDone < needed) {
+                        rowAboveDone = progress.get((y - 1) % errorRing.length);
+                        if (rowAboveDone < needed) {
+                            if (aborted) {
+                                return;
+                            }
+                            Thread.yield();
+                        }
+                    }
+                    int rgb = rgbRow[x];
+                    int e = 3 * (x + 1);
+                    int red = clamp(((rgb >> 16) & 0xFF) + ((errors[e] + rightRed + 8) >> 4));
+                    int green = clamp(((rgb >> 8) & 0xFF) + ((errors[e + 1] + rightGreen + 8) >> 4));
+                    int blue = clamp((rgb & 0xFF) + ((errors[e + 2] + rightBlue + 8) >> 4));
+                    int index = palette.indexOf((red << 16) | (green << 8) | blue);
+                    indices[x] = index;
+                    int color = palette.getColor(index);
+                    int errorRed = red - ((color >> 16) & 0xFF);
+                    int errorGreen = green - ((color >> 8) & 0xFF);
+                    int errorBlue = blue - (color & 0xFF);
+                    rightRed = 7 * errorRed;
+                    rightGreen = 7 * errorGreen;
+                    rightBlue = 7 * errorBlue;
+                    nextErrors[e - 3] += 3 * errorRed;
+                    nextErrors[e - 2] += 3 * errorGreen;
+                    nextErrors[e - 1] += 3 * errorBlue;
+                    nextErrors[e] += 5 * errorRed;
+                    nextErrors[e + 1] += 5 * errorGreen;
+                    nextErrors[e + 2] += 5 * errorBlue;
+                    nextErrors[e + 3] += errorRed;
+                    nextErrors[e + 4] += errorGreen;
+                    nextErrors[e + 5] += errorBlue;
+                    if (threads > 1 && (x + 1) % PROGRESS_PIXELS == 0) {
+                        progress.set(y % errorRing.length, rowStart + x + 1);
+                    }
+                }
+                progress.set(y % errorRing.length, rowStart + width);
+                writer.writeRow(y, rgbRow, indices);
+            }
+        }
+    }
+
+    //Ordered dithering with the Bayer matrix, tiles of TILE_ROWS rows taken by the threads in turn.
+    //Every channel is offset by the same threshold, scaled to the mean distance between the palette's colours.
+    private class OrderedDither implements Runnable {
+        private final BufferedImage image;
+        private final Palette palette;
+        private final RowWriter writer;
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        //Offset of each matrix entry, centred on 0
+        private final int[] offsets = new int[BAYER_MATRIX.length];
+        private final AtomicInteger nextTile = new AtomicInteger();
+        private volatile boolean aborted;
+
+        OrderedDither(BufferedImage image, Palette palette, RowWriter writer) {
+            this.image = image;
+            this.palette = palette;
+            this.writer = writer;
+            width = image.getWidth();
+            height = image.getHeight();
+            pixels = getIntPixels(image);
+            double spread = getSpread(palette);
+            for (int i = 0; i < BAYER_MATRIX.length; i++) {
+                offsets[i] = (int) Math.round(spread * ((BAYER_MATRIX[i] + 0.5) / BAYER_MATRIX.length - 0.5));
+            }
+        }
+
+        void dither() {
+            runOnThreads(this, () -> aborted = true);
+        }
+
+        @Override
+        public void run() {
+            int[] rgbRow = new int[width];
+            int[] indices = new int[width];
+            int tile;
+            while (!aborted && (tile = nextTile.getAndIncrement()) * TILE_ROWS < height) {
+                for (int y = tile * TILE_ROWS; y < Math.min((tile + 1) * TILE_ROWS, height); y++) {
+                    readRow(image, pixels, y, rgbRow);
+                    int matrixRow = (y & 7) << 3;
+                    for (int x = 0; x < width; x++) {
+                        int rgb = rgbRow[x];
+                        int offset = offsets[matrixRow | (x & 7)];
+                        int red = clamp(((rgb >> 16) & 0xFF) + offset);
+                        int green = clamp(((rgb >> 8) & 0xFF) + offset);
+                        int blue = clamp((rgb & 0xFF) + offset);
+                        indices[x] = palette.indexOf((red << 16) | (green << 8) | blue);
+                    }
+                    writer.writeRow(y, rgbRow, indices);
+                }
+            }
+        }
+    }
+
+    //Mean sRGB distance from each palette colour to its closest other colour, or 0 for a single colour
+    private static double getSpread(Palette palette) {
+        int[] colors = palette.getColors();
+        if (colors.length < 2) {
+            return 0;
+        }
+        double total = 0;
+        for (int i = 0; i < colors.length; i++) {
+            double minDistance = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < colors.length; j++) {
+                if (i == j) {
+                    continue;
+                }
+                double red = ((colors[i] >> 16) & 0xFF) - ((colors[j] >> 16) & 0xFF);
+                double green = ((colors[i] >> 8) & 0xFF) - ((colors[j] >> 8) & 0xFF);
+                double blue = (colors[i] & 0xFF) - (colors[j] & 0xFF);
+                minDistance = Math.min(minDistance, red * red + green * green + blue * blue);
+            }
+            total += Math.sqrt(minDistance);
+        }
+        return total / colors.length;
+    }
+}
@@ -1,8 +1,10 @@
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * Class containing IO methods
@@ -11,12 +13,9 @@ public class FilePathsAndImageIO {
 
     //Inputs an image from a filePath
     protected static BufferedImage inputImage(String filePath) {
-        if (filePath == null) {
-            throw new IllegalArgumentException("File path must not be null.");
-        }
         BufferedImage image = null;
         try {
-            image = ImageIO.read(new File(filePath));
+            image = readImage(filePath);
         } catch (FileNotFoundException e) {
             System.out.println("File not found: " + e.getMessage());
         } catch (IOException e) {
@@ -25,31 +24,81 @@ public class FilePathsAndImageIO {
         return image;
     }
 
+    //Inputs an image from a filePath, throwing an IOException if it can't be read as an image
+    protected static BufferedImage readImage(String filePath) throws IOException {
+        if (filePath == null) {
+            throw new IllegalArgumentException("File path must not be null.");
+        }
+        File imageFile = new File(filePath);
+        if (!imageFile.isFile()) {
+            throw new FileNotFoundException(filePath);
+        }
+        if (RawPixelIO.isRawFile(filePath)) {
+            return RawPixelIO.open(filePath).toBufferedImage();
+        }
+        BufferedImage image = ImageIO.read(imageFile);
+        if (image == null) {
+            throw new IOException("No image reader for " + filePath);
+        }
+        return image;
+    }
+
     protected static String validateOutputPath(String outputPathString, String inputPath, int k) throws IOException {
+        return validateOutputPath(outputPathString, inputPath, k, CompressImage.DEFAULT_FILE_FORMAT);
+    }
+
+    //Output paths created from the input path have the formatName extension
+    protected static String validateOutputPath(String outputPathString, String inputPath, int k, String formatName)
+            throws IOException {
         File inputFile = new File(inputPath);
         if (outputPathString == null) {
-            return createOutputPath(inputFile.getCanonicalPath(), k);
+            return createOutputPath(inputFile.getCanonicalPath(), k, formatName);
         }
         File outputPath = new File(outputPathString);
         if (outputPath.isDirectory()) {
-            File outputPathFile = new File(outputPath, createOutputPath(inputFile.getName(), k));
+            File outputPathFile = new File(outputPath, createOutputPath(inputFile.getName(), k, formatName));
             return outputPathFile.getCanonicalPath();
         }
         return outputPath.getCanonicalPath();
     }
 
     protected static String createOutputPath(String inputPath, int k) {
+        return createOutputPath(inputPath, k, CompressImage.DEFAULT_FILE_FORMAT);
+    }
+
+    protected static String createOutputPath(String inputPath, int k, String formatName) {
         int i = inputPath.lastIndexOf('.');
         if (i == -1){
-            return inputPath + "-output-" + k + "-colors." + CompressImage.DEFAULT_FILE_FORMAT;
+            return inputPath + "-output-" + k + "-colors." + formatName;
         }
         else {
-            return inputPath.substring(0, i) + "-output-" + k + "." + CompressImage.DEFAULT_FILE_FORMAT;
+            return inputPath.substring(0, i) + "-output-" + k + "." + formatName;
+        }
+    }
+
+    //Format of output paths created from the input path: raw for raw input, PNG for indexed images and streaming
+    protected static String getDefaultFormat(String inputPath, Map<String, String> properties) {
+        if (RawPixelIO.isRawFile(inputPath)) {
+            return RawPixelIO.FILE_EXTENSION;
+        }
+        if (properties.containsKey("streaming") && properties.get("streaming").equals("true")) {
+            return StreamingCompression.DEFAULT_FILE_FORMAT;
         }
+        return ImageManipulation.isIndexed(properties) ? CompressImage.DEFAULT_INDEXED_FILE_FORMAT
+                : CompressImage.DEFAULT_FILE_FORMAT;
     }
 
     //Outputs an image to a filePath
     protected static void outputImage(BufferedImage image, String filePath) {
+        try {
+            writeImage(image, filePath);
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+
+    //Outputs an image to a filePath, throwing an IOException if it can't be written
+    protected static void writeImage(BufferedImage image, String filePath) throws IOException {
         if (image == null) {
             throw new IllegalArgumentException("Image must not be null.");
         } else if (filePath == null) {
@@ -59,19 +108,22 @@ public class FilePathsAndImageIO {
         String formatName;
         //If there is no "." in the filePath
         if (i == -1) {
-            //Set the file format to the default file format
-            formatName = CompressImage.DEFAULT_FILE_FORMAT;
+            //Set the file format to the default file format, for the image's colour model
+            formatName = image.getColorModel() instanceof IndexColorModel ? CompressImage.DEFAULT_INDEXED_FILE_FORMAT
+                    : CompressImage.DEFAULT_FILE_FORMAT;
             //Appends the filePath with the default file format
-            filePath += "." + CompressImage.DEFAULT_FILE_FORMAT;
+            filePath += "." + formatName;
         } else {
             //Otherwise get the format name from the file path extension
             formatName = filePath.substring(i + 1);
         }
+        if (formatName.equalsIgnoreCase(RawPixelIO.FILE_EXTENSION)) {
+            RawPixelIO.write(image, filePath);
+            return;
+        }
         File imageFile = new File(filePath);
-        try {
-            ImageIO.write(image, formatName, imageFile);
-        } catch (IOException e) {
-            System.out.println("IO Exception: " + e.getMessage());
+        if (!ImageIO.write(image, formatName, imageFile)) {
+            throw new IOException("No image writer for format " + formatName);
         }
     }
 
@@ -1,48 +1,239 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class to manipulate to calculate and compress and image to a number of colors
  *  using the K Means Algorithm (KMeansAlgorithm)
  */
 public class ImageManipulation {
+    //Images of at most this many pixels are recoloured without a lookup table, searching the palette for every pixel
+    // being faster than clearing the 32 MB table
+    public static final int MAX_PIXELS_WITHOUT_TABLE = 1 << 16;
+    //Each thread recolouring images reuses one lookup table for all of them, as a KMeansSession does, so a batch keeps
+    // one table per job rather than allocating one per image
+    private static final ThreadLocal<char[]> LOOKUP_TABLES = ThreadLocal.withInitial(() -> new char[Palette.TABLE_SIZE]);
 
     public static void compressImageToKColors(String inputPath, String outputPath, int k, HashMap<String, String> properties){
+        if (RawPixelIO.isRawFile(inputPath)){
+            try {
+                RawPixelIO.compressImageToKColors(inputPath, outputPath, k, properties);
+            } catch (IOException e) {
+                System.out.println("IO Exception: " + e.getMessage());
+            }
+            return;
+        }
+        if (properties.containsKey("streaming") && properties.get("streaming").equals("true")){
+            try {
+                StreamingCompression.compressImageToKColors(inputPath, outputPath, k, properties);
+            } catch (IOException e) {
+                System.out.println("IO Exception: " + e.getMessage());
+            }
+            return;
+        }
         BufferedImage image = FilePathsAndImageIO.inputImage(inputPath);
-        List<DataPoint> dataPoints = getDataPoints(image);
-
-        KMeansAlgorithm kMeansAlgorithm = new KMeansAlgorithm(dataPoints, properties);
+        if (image == null) {
+            return;
+        }
+        image = compressImageToKColors(image, k, properties);
+        FilePathsAndImageIO.outputImage(image, outputPath);
+    }
 
-        if (properties.containsKey("intermediate-images") && properties.get("intermediate-images").equals("true")){
-            kMeansAlgorithm.kmeansWithIntermediateImages(k, image);
+    //Clusters the colours of the image and recolours it in place, or with the "indexed" property returns a new
+    // indexed image of the palette colours.
+    //With a palette cache, an image whose palette is cached is only recoloured, and other palettes are cached.
+    public static BufferedImage compressImageToKColors(BufferedImage image, int k, Map<String, String> properties){
+        checkIndexed(k, properties);
+        //Checks the "dither" property before clustering
+        Dithering.fromProperties(properties);
+        PaletteCache paletteCache = PaletteCache.fromProperties(properties);
+        String paletteCacheKey = null;
+        //Smaller copies of the image to cluster first, with the "pyramid" property
+        List<BufferedImage> pyramidLevels = new ArrayList<>();
+        KMeansAlgorithm kMeansAlgorithm;
+        switch (properties.getOrDefault("engine", "packed")) {
+            case "packed":
+                PackedDataPoints packedDataPoints = getPackedDataPoints(image, properties);
+                if (paletteCache != null) {
+                    paletteCacheKey = PaletteCache.key(packedDataPoints, k, properties);
+                    Palette palette = paletteCache.get(paletteCacheKey);
+                    if (palette != null) {
+                        if (properties.containsKey("verbose") && properties.get("verbose").equals("true")) {
+                            System.out.println("Palette cache hit: " + paletteCacheKey);
+                        }
+                        exportPalette(palette, properties);
+                        return recolourImage(image, palette, properties);
+                    }
+                }
+                pyramidLevels = PyramidClustering.downsample(image, PyramidClustering.getLevels(properties), k);
+                kMeansAlgorithm = new KMeansAlgorithm(packedDataPoints,
+                        pyramidLevels.isEmpty() ? properties : PyramidClustering.refinementProperties(properties));
+                break;
+            case "object":
+                if (properties.containsKey("histogram")) {
+                    throw new IllegalArgumentException("\"histogram\" requires the \"packed\" engine.");
+                }
+                if (paletteCache != null) {
+                    throw new IllegalArgumentException("The palette cache requires the \"packed\" engine.");
+                }
+                if (PyramidClustering.getLevels(properties) > 1) {
+                    throw new IllegalArgumentException("\"pyramid\" requires the \"packed\" engine.");
+                }
+                kMeansAlgorithm = new KMeansAlgorithm(getDataPoints(image, ColourSpace.fromProperties(properties)), properties);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid \"engine\" value. Must be \"packed\" or \"object\".");
         }
-        else {
+
+        JsonLinesMetricsSink metricsSink = addMetricsSink(kMeansAlgorithm, properties);
+        ProgressImageWriter progressImageWriter = null;
+        try {
+            if (!pyramidLevels.isEmpty()) {
+                kMeansAlgorithm.setInitialPalette(PyramidClustering.clusterLevels(pyramidLevels, k, properties, metricsSink));
+            }
+            if (properties.containsKey("intermediate-images") && properties.get("intermediate-images").equals("true")){
+                progressImageWriter = ProgressImageWriter.fromProperties(image, properties);
+                kMeansAlgorithm.addListener(progressImageWriter);
+            }
             kMeansAlgorithm.kmeans(k);
+
+            Palette palette = kMeansAlgorithm.getPalette();
+            if (paletteCache != null && PaletteCache.isCacheable(kMeansAlgorithm.getTerminationReason())) {
+                paletteCache.put(paletteCacheKey, palette);
+            }
+            exportPalette(palette, properties);
+            long start = System.nanoTime();
+            image = recolourImage(image, palette, properties);
+            kMeansAlgorithm.imageRecoloured(System.nanoTime() - start);
+            return image;
+        } finally {
+            closeMetricsSink(metricsSink);
+            closeProgressImageWriter(progressImageWriter);
         }
+    }
 
-        image = modifyImageColors(image, kMeansAlgorithm);
-        FilePathsAndImageIO.outputImage(image, outputPath);
+    //With the "export-palette" property, writes the palette's colours to that file
+    protected static void exportPalette(Palette palette, Map<String, String> properties){
+        if (!properties.containsKey("export-palette")) {
+            return;
+        }
+        try {
+            palette.writeFile(properties.get("export-palette"));
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+
+    //With the "metrics-file" property, writes the metrics of every iteration to that file. Returns null otherwise.
+    protected static JsonLinesMetricsSink addMetricsSink(KMeansAlgorithm kMeansAlgorithm, Map<String, String> properties){
+        JsonLinesMetricsSink metricsSink = openMetricsSink(properties);
+        if (metricsSink != null) {
+            kMeansAlgorithm.addListener(metricsSink);
+        }
+        return metricsSink;
+    }
+
+    //The metrics file of the "metrics-file" property, or null if not set
+    protected static JsonLinesMetricsSink openMetricsSink(Map<String, String> properties){
+        if (!properties.containsKey("metrics-file")) {
+            return null;
+        }
+        try {
+            return new JsonLinesMetricsSink(properties.get("metrics-file"), false);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid \"metrics-file\" value. Can't write to " +
+                    properties.get("metrics-file") + ": " + e.getMessage());
+        }
+    }
+
+    protected static void closeMetricsSink(JsonLinesMetricsSink metricsSink){
+        if (metricsSink == null) {
+            return;
+        }
+        try {
+            metricsSink.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
     }
 
-    private static List<DataPoint> getDataPoints(BufferedImage image){
+    //Waits for the progress images to be written
+    protected static void closeProgressImageWriter(ProgressImageWriter progressImageWriter){
+        if (progressImageWriter == null) {
+            return;
+        }
+        try {
+            progressImageWriter.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+
+    private static List<DataPoint> getDataPoints(BufferedImage image, ColourSpace colourSpace){
         List<DataPoint> dataPoints = new ArrayList<>();
         int[] rgbData = image.getRGB(0,0, image.getWidth(), image.getHeight(),
                 null, 0,image.getWidth());
         for (int x = 0; x < image.getWidth(); x++){
             for (int y = 0; y < image.getHeight(); y++){
                 int rgbValue = rgbData[(y*image.getWidth())+x];
-                int colorRed = (rgbValue >> 16) & 0xFF;
-                int colorGreen = (rgbValue >> 8) & 0xFF;
-                int colorBlue = rgbValue & 0xFF;
-                dataPoints.add(new DataPoint(colorRed, colorGreen, colorBlue));
+                dataPoints.add(new DataPoint(colourSpace.toCoords(rgbValue)));
             }
         }
         return dataPoints;
     }
 
+    //Packs every pixel, or with the "histogram" property every unique colour weighted by its pixel count,
+    // in the "colour-space"
+    protected static PackedDataPoints getPackedDataPoints(BufferedImage image, Map<String, String> properties){
+        int[] rgbData = image.getRGB(0,0, image.getWidth(), image.getHeight(),
+                null, 0,image.getWidth());
+        PackedDataPoints packedDataPoints = properties.containsKey("histogram") ?
+                PackedDataPoints.histogramFromRGB(rgbData, getHistogramBits(properties))
+                : PackedDataPoints.fromRGB(rgbData, image.getWidth(), image.getHeight());
+        ColourSpace.fromProperties(properties).convertFromRGB(packedDataPoints);
+        return packedDataPoints;
+    }
+
+    //Whether the "indexed" property asks for an indexed image, of palette indices, instead of an RGB image
+    protected static boolean isIndexed(Map<String, String> properties){
+        switch (properties.getOrDefault("indexed", "false")) {
+            case "true":
+                return true;
+            case "false":
+                return false;
+            default:
+                throw new IllegalArgumentException("Invalid \"indexed\" value. Must be \"true\" or \"false\".");
+        }
+    }
+
+    //Checks the "indexed" property before clustering, as an indexed image can't have more than 256 colours
+    protected static void checkIndexed(int k, Map<String, String> properties){
+        if (isIndexed(properties) && k > 256) {
+            throw new IllegalArgumentException("\"indexed\" requires at most 256 colours: " + k + " given.");
+        }
+    }
+
+    protected static int getHistogramBits(Map<String, String> properties){
+        switch (properties.get("histogram")) {
+            case "8":
+                return 8;
+            case "6":
+                return 6;
+            case "5":
+                return 5;
+            default:
+                throw new IllegalArgumentException("Invalid \"histogram\" value. Must be \"8\", \"6\", or \"5\" bits per channel.");
+        }
+    }
+
     private static List<Color> getCentroidColors(Centroid[] centroids){
         List<Color> colors = new ArrayList<>();
         for (Centroid centroid : centroids){
@@ -54,21 +245,141 @@ public class ImageManipulation {
     }
 
     protected static BufferedImage modifyImageColors(BufferedImage image, KMeansAlgorithm kMeansAlgorithm){
-        int[] rgbData = image.getRGB(0,0, image.getWidth(), image.getHeight(),
-                null, 0,image.getWidth());
-        for (int x = 0; x < image.getWidth(); x++){
-            for (int y = 0; y < image.getHeight(); y++) {
-                int rgbValue = rgbData[(y*image.getWidth())+x];
-                int colorRed = (rgbValue >> 16) & 0xFF;
-                int colorGreen = (rgbValue >> 8) & 0xFF;
-                int colorBlue = (rgbValue) & 0xFF;
+        return modifyImageColors(image, kMeansAlgorithm.getPalette());
+    }
 
-                DataPoint dataPoint = new DataPoint(colorRed, colorGreen, colorBlue);
-                DataPoint closest = kMeansAlgorithm.getClosestCentroid(dataPoint).getCentre();
-                image.setRGB(x, y, new Color(closest.getX(), closest.getY(), closest.getZ()).getRGB());
+    //Maps every pixel to its closest palette colour in a single pass, writing straight into the image's data buffer
+    // for the int RGB and 3 byte BGR layouts, or all at once through setRGB otherwise
+    protected static BufferedImage modifyImageColors(BufferedImage image, Palette palette){
+        WritableRaster raster = image.getRaster();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        //Sub-images share their parent's data buffer, so can't be written to as a whole
+        boolean wholeBuffer = raster.getParent() == null;
+        if (wholeBuffer && (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)){
+            int[] pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            for (int i = 0; i < width * height; i++) {
+                pixels[i] = palette.map(pixels[i]);
+            }
+        }
+        else if (wholeBuffer && image.getType() == BufferedImage.TYPE_3BYTE_BGR){
+            byte[] pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+            for (int i = 0; i < width * height * 3; i += 3) {
+                int rgbValue = ((pixels[i + 2] & 0xFF) << 16) | ((pixels[i + 1] & 0xFF) << 8) | (pixels[i] & 0xFF);
+                int color = palette.getColor(palette.indexOf(rgbValue));
+                pixels[i] = (byte) color;
+                pixels[i + 1] = (byte) (color >> 8);
+                pixels[i + 2] = (byte) (color >> 16);
             }
         }
+        else {
+            int[] rgbData = image.getRGB(0,0, width, height,
+                    null, 0,width);
+            for (int i = 0; i < rgbData.length; i++) {
+                rgbData[i] = palette.map(rgbData[i]);
+            }
+            image.setRGB(0, 0, width, height, rgbData, 0, width);
+        }
+        return image;
+    }
+
+    //Recolours the image to the palette as an indexed or RGB image, dithered with the "dither" property.
+    //Uses the lookup table of the thread, or none for an image of at most MAX_PIXELS_WITHOUT_TABLE pixels.
+    protected static BufferedImage recolourImage(BufferedImage image, Palette palette, Map<String, String> properties){
+        Dithering dithering = Dithering.fromProperties(properties);
+        char[] table = (long) image.getWidth() * image.getHeight() <= MAX_PIXELS_WITHOUT_TABLE ? null
+                : LOOKUP_TABLES.get();
+        palette = new Palette(palette.getColourSpace(), palette.getCentres(), table);
+        return isIndexed(properties) ? toIndexedImage(image, palette, dithering) : modifyImageColors(image, palette, dithering);
+    }
+
+    //Recolours the image in place, choosing each pixel's palette colour by the dithering, or the closest if null
+    protected static BufferedImage modifyImageColors(BufferedImage image, Palette palette, Dithering dithering){
+        if (dithering == null) {
+            return modifyImageColors(image, palette);
+        }
+        int width = image.getWidth();
+        boolean intBuffer = image.getRaster().getParent() == null &&
+                (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = intBuffer ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData() : null;
+        dithering.recolour(image, palette, (y, rgbRow, indices) -> {
+            for (int x = 0; x < width; x++) {
+                rgbRow[x] = (rgbRow[x] & 0xFF000000) | palette.getColor(indices[x]);
+            }
+            if (intBuffer) {
+                System.arraycopy(rgbRow, 0, pixels, y * width, width);
+            }
+            else {
+                image.setRGB(0, y, width, 1, rgbRow, 0, width);
+            }
+        });
         return image;
     }
 
+    //A new image of the index of every pixel's closest palette colour, with the palette as its IndexColorModel.
+    //Palettes of up to 16 colours are packed 1, 2, or 4 bits per pixel, otherwise a byte per pixel. Alpha is dropped.
+    protected static BufferedImage toIndexedImage(BufferedImage image, Palette palette){
+        IndexColorModel colorModel = palette.toIndexColorModel();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int bits = palette.getIndexBits();
+        BufferedImage indexedImage = bits == 8 ?
+                new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel)
+                : new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+        byte[] indices = ((DataBufferByte) indexedImage.getRaster().getDataBuffer()).getData();
+        //Rows of packed pixels start on a byte boundary, with the first pixel in the highest bits
+        int rowBytes = (width * bits + 7) / 8;
+        int pixelsPerByte = 8 / bits;
+        //Int RGB pixels are read straight from the data buffer, other layouts a row at a time through getRGB
+        boolean intBuffer = image.getRaster().getParent() == null &&
+                (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB);
+        int[] rgbData = intBuffer ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData() : new int[width];
+        for (int y = 0; y < height; y++) {
+            int rgbStart = 0;
+            if (intBuffer) {
+                rgbStart = y * width;
+            }
+            else {
+                image.getRGB(0, y, width, 1, rgbData, 0, width);
+            }
+            int rowStart = y * rowBytes;
+            if (bits == 8) {
+                for (int x = 0; x < width; x++) {
+                    indices[rowStart + x] = (byte) palette.indexOf(rgbData[rgbStart + x]);
+                }
+            }
+            else {
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bits * (x % pixelsPerByte + 1);
+                    indices[rowStart + x / pixelsPerByte] |= (byte) (palette.indexOf(rgbData[rgbStart + x]) << shift);
+                }
+            }
+        }
+        return indexedImage;
+    }
+
+    //A new indexed image of the palette, choosing each pixel's palette colour by the dithering, or the closest if null
+    protected static BufferedImage toIndexedImage(BufferedImage image, Palette palette, Dithering dithering){
+        if (dithering == null) {
+            return toIndexedImage(image, palette);
+        }
+        int width = image.getWidth();
+        int bits = palette.getIndexBits();
+        BufferedImage indexedImage = bits == 8 ?
+                new BufferedImage(width, image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, palette.toIndexColorModel())
+                : new BufferedImage(width, image.getHeight(), BufferedImage.TYPE_BYTE_BINARY, palette.toIndexColorModel());
+        byte[] indices = ((DataBufferByte) indexedImage.getRaster().getDataBuffer()).getData();
+        //Rows start on a byte boundary, so rows written by different threads don't share bytes
+        int rowBytes = (width * bits + 7) / 8;
+        int pixelsPerByte = 8 / bits;
+        dithering.recolour(image, palette, (y, rgbRow, rowIndices) -> {
+            int rowStart = y * rowBytes;
+            for (int x = 0; x < width; x++) {
+                int shift = 8 - bits * (x % pixelsPerByte + 1);
+                indices[rowStart + x / pixelsPerByte] |= (byte) (rowIndices[x] << shift);
+            }
+        });
+        return indexedImage;
+    }
+
 }
@@ -0,0 +1,111 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Metrics of one iteration of the KMeansAlgorithm.
+ * Metrics an algorithm can't measure are -1, or NaN for the inertia.
+ */
+public class IterationMetrics {
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final int iteration;
+    private final long assignNanos;
+    private final long updateNanos;
+    private final long recolourNanos;
+    private final long dataPointsReassigned;
+    private final double inertia;
+    private final int emptyCentroids;
+    private final long distanceCalculations;
+    private final long allocatedBytes;
+    private final long heapUsedBytes;
+
+    public IterationMetrics(int iteration, long assignNanos, long updateNanos, long recolourNanos,
+                            long dataPointsReassigned, double inertia, int emptyCentroids, long distanceCalculations,
+                            long allocatedBytes) {
+        this.iteration = iteration;
+        this.assignNanos = assignNanos;
+        this.updateNanos = updateNanos;
+        this.recolourNanos = recolourNanos;
+        this.dataPointsReassigned = dataPointsReassigned;
+        this.inertia = inertia;
+        this.emptyCentroids = emptyCentroids;
+        this.distanceCalculations = distanceCalculations;
+        this.allocatedBytes = allocatedBytes;
+        Runtime runtime = Runtime.getRuntime();
+        this.heapUsedBytes = runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //Total bytes allocated by the current thread, or -1 if the JVM can't measure it
+    public static long currentThreadAllocatedBytes() {
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            if (threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public long getAssignNanos() {
+        return assignNanos;
+    }
+
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    //Time taken to output an intermediate image, 0 if none was output
+    public long getRecolourNanos() {
+        return recolourNanos;
+    }
+
+    public long getDataPointsReassigned() {
+        return dataPointsReassigned;
+    }
+
+    //Sum of the weighted squared distances from the data points to the centroids they were assigned to
+    public double getInertia() {
+        return inertia;
+    }
+
+    public int getEmptyCentroids() {
+        return emptyCentroids;
+    }
+
+    public long getDistanceCalculations() {
+        return distanceCalculations;
+    }
+
+    //Bytes allocated by the thread running the algorithm during the iteration
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long getHeapUsedBytes() {
+        return heapUsedBytes;
+    }
+
+    public String toJson() {
+        return "{\"event\": \"iteration\"" +
+                ", \"iteration\": " + iteration +
+                ", \"assignNanos\": " + assignNanos +
+                ", \"updateNanos\": " + updateNanos +
+                ", \"recolourNanos\": " + recolourNanos +
+                ", \"dataPointsReassigned\": " + dataPointsReassigned +
+                ", \"inertia\": " + (Double.isNaN(inertia) ? "null" : String.format(Locale.ROOT, "%.1f", inertia)) +
+                ", \"emptyCentroids\": " + emptyCentroids +
+                ", \"distanceCalculations\": " + distanceCalculations +
+                ", \"allocatedBytes\": " + allocatedBytes +
+                ", \"heapUsedBytes\": " + heapUsedBytes + "}";
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * KMeansListener that writes a line of JSON to a file for every iteration, the end of every run, and every
+ *  recoloured image.
+ */
+public class JsonLinesMetricsSink implements KMeansListener, Closeable {
+    private final BufferedWriter writer;
+
+    public JsonLinesMetricsSink(String filePath, boolean append) throws IOException {
+        writer = new BufferedWriter(new FileWriter(filePath, append));
+    }
+
+    @Override
+    public synchronized void iterationCompleted(IterationMetrics metrics) {
+        writeLine(metrics.toJson());
+    }
+
+    @Override
+    public synchronized void imageRecoloured(long recolourNanos) {
+        writeLine("{\"event\": \"recolour\", \"recolourNanos\": " + recolourNanos + "}");
+    }
+
+    @Override
+    public synchronized void runCompleted(TerminationReason reason, int iterations) {
+        writeLine("{\"event\": \"completed\", \"reason\": \"" + reason + "\", \"iterations\": " + iterations + "}");
+    }
+
+    private void writeLine(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -1,6 +1,5 @@
-
-import javax.xml.crypto.Data;
-import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -10,14 +9,92 @@ import java.util.function.Consumer;
 public class KMeansAlgorithm {
     private Centroid[] centroids;
     private List<DataPoint> dataPoints;
+    //Used instead of dataPoints when constructed with PackedDataPoints
+    private PackedDataPoints packedDataPoints;
+    private PackedKMeansEngine engine;
+    //false for an engine given to the constructor, which keeps its threads between runs
+    private boolean ownsEngine = true;
     private int numCoords;
 
     //default values
     private boolean verbose = false;
     private Consumer<Integer> initialCentroidsMethod = this::initialCentroidsRandomDataPoints;
+    private Random rnd = new Random();
+    //Colour space of the data points, for the palette
+    private ColourSpace colourSpace = ColourSpace.SRGB;
+    //Centres to start from with the "palette" initialization, in the colour space
+    private double[][] initialPaletteCentres;
+    //With the "auto-k" property, k grows until the "max-error" or "elbow" rule is met, up to the k given
+    private boolean autoK = false;
+    private double maxColourError = -1;
+    private double elbow = -1;
+    //k-means|| values
+    private int seedingRounds = 5;
+    private double oversamplingFactor = 2;
+    //mini-batch values
+    private boolean miniBatch = false;
+    private int batchSize = 1024;
+    private boolean finalPass = true;
+    //stopping criteria, -1 for the defaults: no limit and exact convergence for full iterations,
+    // DEFAULT_MINI_BATCH_ITERATIONS and DEFAULT_MINI_BATCH_TOLERANCE for mini-batches
+    private int maxIterations = -1;
+    private double tolerance = -1;
+    //0 for no limit
+    private double minImprovement = 0;
+    private long timeLimitMillis = 0;
+
+    public static final int DEFAULT_MINI_BATCH_ITERATIONS = 100;
+    public static final double DEFAULT_MINI_BATCH_TOLERANCE = 0.5;
+    //With "auto-k" and no rule given, stops when a colour lowers the inertia by less than this fraction
+    public static final double DEFAULT_ELBOW = 0.1;
+
+    //System.nanoTime() when the current run started, the whole sweep with "auto-k"
+    private long runStartNanos;
+    private TerminationReason terminationReason;
+    private int iterations;
+    //While an "auto-k" sweep runs, the listeners are only told the run completed once the k is chosen
+    private boolean sweeping = false;
+    //Set by cancel, from any thread
+    private volatile boolean cancelled = false;
+
+    private final List<KMeansListener> listeners = new ArrayList<>();
 
     public KMeansAlgorithm(List<DataPoint> dataPoints, Map<String, String> properties) {
         this(dataPoints);
+        setProperties(properties);
+    }
+
+    public KMeansAlgorithm(PackedDataPoints packedDataPoints, Map<String, String> properties) {
+        this(packedDataPoints);
+        setProperties(properties);
+    }
+
+    public KMeansAlgorithm(PackedDataPoints packedDataPoints) {
+        this(packedDataPoints, new PackedKMeansEngine(packedDataPoints));
+        ownsEngine = true;
+    }
+
+    //Clusters the points on an engine that may have clustered other points, reusing its buffers and threads.
+    //The engine's threads are not shut down after a run.
+    public KMeansAlgorithm(PackedDataPoints packedDataPoints, PackedKMeansEngine engine, Map<String, String> properties) {
+        this(packedDataPoints, engine);
+        setProperties(properties);
+    }
+
+    private KMeansAlgorithm(PackedDataPoints packedDataPoints, PackedKMeansEngine engine) {
+        if (packedDataPoints.size() <= 1) {
+            throw new IllegalArgumentException("Number of data points must be larger than 1");
+        }
+        numCoords = packedDataPoints.getNumCoords();
+        this.packedDataPoints = packedDataPoints;
+        if (engine.getPoints() != packedDataPoints) {
+            engine.setPoints(packedDataPoints);
+        }
+        this.engine = engine;
+        ownsEngine = false;
+    }
+
+    private void setProperties(Map<String, String> properties) {
         if (properties.containsKey("verbose")) {
             switch (properties.get("verbose")) {
                 case "true":
@@ -38,11 +115,188 @@ public class KMeansAlgorithm {
                 case "random data point":
                     initialCentroidsMethod = this::initialCentroidsRandomDataPoints;
                     break;
+                case "k++":
+                    initialCentroidsMethod = this::initialCentroidsKMeansPlusPlus;
+                    break;
+                case "greedy k++":
+                    initialCentroidsMethod = this::initialCentroidsGreedyKMeansPlusPlus;
+                    break;
+                case "k-means||":
+                    initialCentroidsMethod = this::initialCentroidsKMeansParallel;
+                    break;
+                case "palette":
+                    initialCentroidsMethod = this::initialCentroidsPalette;
+                    break;
                 default:
                     throw new IllegalArgumentException("Invalid \"initialization\" value. " +
-                            "Must be \"k++\", \"random coordinate\", or \"random data point\".");
+                            "Must be \"k++\", \"greedy k++\", \"k-means||\", \"palette\", \"random coordinate\", or \"random data point\".");
+            }
+        }
+        if (properties.containsKey("algorithm")) {
+            switch (properties.get("algorithm")) {
+                case "lloyd":
+                    if (engine != null) {
+                        engine.setHamerlyBounds(false);
+                    }
+                    miniBatch = false;
+                    break;
+                case "hamerly":
+                    if (engine == null) {
+                        throw new IllegalArgumentException("\"hamerly\" algorithm requires the \"packed\" engine.");
+                    }
+                    engine.setHamerlyBounds(true);
+                    miniBatch = false;
+                    break;
+                case "mini-batch":
+                    if (engine == null) {
+                        throw new IllegalArgumentException("\"mini-batch\" algorithm requires the \"packed\" engine.");
+                    }
+                    engine.setHamerlyBounds(false);
+                    miniBatch = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid \"algorithm\" value. " +
+                            "Must be \"lloyd\", \"hamerly\", or \"mini-batch\".");
+            }
+        }
+        if (properties.containsKey("threads")) {
+            if (engine == null) {
+                throw new IllegalArgumentException("\"threads\" requires the \"packed\" engine.");
+            }
+            engine.setThreads(getIntProperty(properties, "threads"));
+        }
+        if (properties.containsKey("kernel")) {
+            if (engine == null) {
+                throw new IllegalArgumentException("\"kernel\" requires the \"packed\" engine.");
+            }
+            switch (properties.get("kernel")) {
+                case "scalar":
+                case "vector":
+                    if (!engine.setKernel(properties.get("kernel"))) {
+                        System.out.println("Vector kernel is not available, using the scalar kernel. " +
+                                "Compile the vector directory and run with \"--add-modules jdk.incubator.vector\".");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid \"kernel\" value. Must be \"scalar\" or \"vector\".");
+            }
+        }
+        if (properties.containsKey("seeding-rounds")) {
+            seedingRounds = getIntProperty(properties, "seeding-rounds");
+        }
+        if (properties.containsKey("oversampling")) {
+            oversamplingFactor = getDoubleProperty(properties, "oversampling");
+        }
+        if (properties.containsKey("batch-size")) {
+            batchSize = getIntProperty(properties, "batch-size");
+        }
+        if (properties.containsKey("max-iterations")) {
+            maxIterations = getIntProperty(properties, "max-iterations");
+            if (maxIterations < 1) {
+                throw new IllegalArgumentException("Invalid \"max-iterations\" value. Must be at least 1.");
+            }
+        }
+        if (properties.containsKey("tolerance")) {
+            tolerance = getDoubleProperty(properties, "tolerance");
+            if (tolerance < 0) {
+                throw new IllegalArgumentException("Invalid \"tolerance\" value. Must not be negative.");
+            }
+        }
+        if (properties.containsKey("min-improvement")) {
+            minImprovement = getDoubleProperty(properties, "min-improvement");
+            if (minImprovement < 0 || minImprovement >= 1) {
+                throw new IllegalArgumentException("Invalid \"min-improvement\" value. Must be from 0 to less than 1.");
+            }
+        }
+        if (properties.containsKey("time-limit")) {
+            try {
+                timeLimitMillis = Long.parseLong(properties.get("time-limit"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid \"time-limit\" value. Must be an integer.");
+            }
+            if (timeLimitMillis < 0) {
+                throw new IllegalArgumentException("Invalid \"time-limit\" value. Must not be negative.");
             }
         }
+        if (properties.containsKey("final-pass")) {
+            switch (properties.get("final-pass")) {
+                case "true":
+                    finalPass = true;
+                    break;
+                case "false":
+                    finalPass = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid \"final-pass\" value. Must be \"true\" or \"false\".");
+            }
+        }
+        if (properties.containsKey("colour-space")) {
+            colourSpace = ColourSpace.fromProperties(properties);
+        }
+        //After the colour space, which the palette is converted to
+        if (properties.containsKey("initial-palette")) {
+            try {
+                setInitialPalette(Palette.readFile(properties.get("initial-palette"), colourSpace));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid \"initial-palette\" value. " + e.getMessage());
+            }
+            if (!properties.containsKey("initialization")) {
+                initialCentroidsMethod = this::initialCentroidsPalette;
+            }
+        }
+        if (properties.containsKey("auto-k")) {
+            switch (properties.get("auto-k")) {
+                case "true":
+                    autoK = true;
+                    break;
+                case "false":
+                    autoK = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid \"auto-k\" value. Must be \"true\" or \"false\".");
+            }
+        }
+        if (properties.containsKey("max-error")) {
+            maxColourError = getDoubleProperty(properties, "max-error");
+            if (maxColourError < 0) {
+                throw new IllegalArgumentException("Invalid \"max-error\" value. Must not be negative.");
+            }
+        }
+        if (properties.containsKey("elbow")) {
+            elbow = getDoubleProperty(properties, "elbow");
+            if (elbow <= 0 || elbow >= 1) {
+                throw new IllegalArgumentException("Invalid \"elbow\" value. Must be more than 0 and less than 1.");
+            }
+        }
+        if (autoK && maxColourError == -1 && elbow == -1) {
+            elbow = DEFAULT_ELBOW;
+        }
+        if (autoK && miniBatch && !finalPass) {
+            throw new IllegalArgumentException("\"auto-k\" requires the \"final-pass\" of \"mini-batch\".");
+        }
+        if (properties.containsKey("seed")) {
+            try {
+                rnd = new Random(Long.parseLong(properties.get("seed")));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid \"seed\" value. Must be an integer.");
+            }
+        }
+    }
+
+    private static int getIntProperty(Map<String, String> properties, String key) {
+        try {
+            return Integer.parseInt(properties.get(key));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid \"" + key + "\" value. Must be an integer.");
+        }
+    }
+
+    private static double getDoubleProperty(Map<String, String> properties, String key) {
+        try {
+            return Double.parseDouble(properties.get(key));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid \"" + key + "\" value. Must be a number.");
+        }
     }
 
     public KMeansAlgorithm(List<DataPoint> dataPoints) {
@@ -59,37 +313,396 @@ public class KMeansAlgorithm {
         this.dataPoints = dataPoints;
     }
 
+    //Listeners, such as a ProgressImageWriter, are told the centres of every iteration.
+    //With "auto-k", k is the most colours to try.
     public void kmeans(int k) {
+        runStartNanos = System.nanoTime();
+        try {
+            if (autoK) {
+                kmeansAutoK(k);
+            }
+            else {
+                kmeansFixedK(k);
+            }
+        } finally {
+            //Once for the whole sweep with "auto-k", so its threads are kept between the values of k
+            if (ownsEngine && engine != null) {
+                engine.shutdown();
+            }
+        }
+    }
+
+    //Grows k from 1, or the size of the initial palette, up to maxK, starting each k from the centroids of the last
+    // and one more centre picked by k-means++, so the data points and centroids found are reused.
+    //Stops at the first k with a mean colour error of at most maxColourError, or when a colour lowers the inertia by
+    // less than the elbow fraction, keeping the k before it. Also stops, keeping the last k, when cancelled or the
+    // time limit of the whole sweep is reached.
+    //The termination reason, iterations, and inertia are those of the k chosen, and the listeners are told the run
+    // completed once, for that k.
+    private void kmeansAutoK(int maxK) {
+        Consumer<Integer> firstInitialization = initialCentroidsMethod;
+        double[][] firstPalette = initialPaletteCentres;
+        long totalWeight = packedDataPoints != null ? packedDataPoints.getTotalWeight() : dataPoints.size();
+        Centroid[] previousCentroids = null;
+        double previousInertia = Double.NaN;
+        TerminationReason previousReason = null;
+        int previousIterations = 0;
+        int k = firstPalette == null ? 1 : Math.min(firstPalette.length, maxK);
+        sweeping = true;
+        try {
+            for (; k <= maxK; k++) {
+                if (previousCentroids != null) {
+                    initialPaletteCentres = getCentres();
+                    initialCentroidsMethod = this::initialCentroidsPalette;
+                }
+                kmeansFixedK(k);
+                if (terminationReason == TerminationReason.CANCELLED || terminationReason == TerminationReason.TIME_LIMIT) {
+                    break;
+                }
+                double inertia = getInertia();
+                double meanColourError = Math.sqrt(inertia / totalWeight) / colourSpace.getScale();
+                if (verbose) {
+                    System.out.println("k: " + k + "\tMean colour error: " + meanColourError);
+                }
+                if (maxColourError != -1 && meanColourError <= maxColourError) {
+                    break;
+                }
+                if (elbow != -1 && previousCentroids != null && previousInertia - inertia < elbow * previousInertia) {
+                    restoreCentroids(previousCentroids, previousReason, previousIterations);
+                    break;
+                }
+                previousCentroids = centroids;
+                previousInertia = inertia;
+                previousReason = terminationReason;
+                previousIterations = iterations;
+            }
+        } finally {
+            sweeping = false;
+            initialCentroidsMethod = firstInitialization;
+            initialPaletteCentres = firstPalette;
+        }
+        if (verbose) {
+            System.out.println("Chose k: " + centroids.length);
+        }
+        for (KMeansListener listener : listeners) {
+            listener.runCompleted(terminationReason, iterations);
+        }
+    }
+
+    //Goes back to the centroids of an earlier k of the sweep, and how its run ended.
+    //The engine's points are assigned to them again, so its assignment and inertia are of the centroids chosen.
+    private void restoreCentroids(Centroid[] previousCentroids, TerminationReason previousReason,
+                                  int previousIterations) {
+        centroids = previousCentroids;
+        terminationReason = previousReason;
+        iterations = previousIterations;
+        if (packedDataPoints != null) {
+            engine.setCentres(getCentres());
+            engine.assign();
+        }
+    }
+
+    private void kmeansFixedK(int k) {
+        if (packedDataPoints != null) {
+            kmeansPacked(k);
+            return;
+        }
         initialCentroids(k);
-        boolean finished = false;
-        while (!finished) {
+        int iteration = 0;
+        double previousInertia = Double.NaN;
+        TerminationReason reason = null;
+        while (reason == null) {
+            iteration++;
+            long allocatedBytes = IterationMetrics.currentThreadAllocatedBytes();
             if (verbose) {
                 System.out.println("/r");
                 System.out.print("Data points reassigned: ");
             }
-            assignDataPointsToCentroid();
+            long start = System.nanoTime();
+            int numberOfDataPointsReassigned = assignDataPointsToCentroid();
+            long assignNanos = System.nanoTime() - start;
+            double inertia = listeners.isEmpty() && minImprovement == 0 ? Double.NaN : getObjectInertia();
+            int emptyCentroids = getEmptyCentroids();
+            double[][] oldCentres = getCentres();
+            long recolourNanos = centresAssigned(iteration, oldCentres);
             if (verbose) System.out.print("\tCentroid centres coordinate change: ");
-            finished = updateCentroids();
+            start = System.nanoTime();
+            boolean finished = updateCentroids();
+            long updateNanos = System.nanoTime() - start;
             System.out.println();
+            iterationCompleted(iteration, assignNanos, updateNanos, recolourNanos, numberOfDataPointsReassigned, inertia,
+                    emptyCentroids, (long) dataPoints.size() * k, allocatedBytes);
+            reason = checkTermination(iteration, finished, getMaxCentreShift(oldCentres), inertia, previousInertia);
+            previousInertia = inertia;
         }
+        runCompleted(reason, iteration);
     }
 
-    public void kmeansWithIntermediateImages(int k, BufferedImage image) {
+    //Same iterations as kmeans, run by the PackedKMeansEngine
+    private void kmeansPacked(int k) {
         initialCentroids(k);
-        boolean finished = false;
+        double[][] initialCentres = new double[k][];
+        for (int i = 0; i < k; i++) {
+            initialCentres[i] = centroids[i].getCentreCoords();
+        }
+        if (miniBatch) {
+            runMiniBatchIterations(initialCentres);
+        }
+        else {
+            engine.setCentres(initialCentres);
+            runPackedIterations();
+        }
+        updateCentroidsFromEngine();
+    }
+
+    private void runPackedIterations() {
         int counter = 0;
-        while (!finished) {
+        double previousInertia = Double.NaN;
+        TerminationReason reason = null;
+        while (reason == null) {
+            counter++;
+            double totalCoordValueChange = runPackedIteration(counter);
+            double inertia = engine.getInertia();
+            reason = checkTermination(counter, totalCoordValueChange == 0, engine.getMaxCentreShift(), inertia, previousInertia);
+            previousInertia = inertia;
+        }
+        runCompleted(reason, counter);
+    }
+
+    //One assignment and update of the engine.
+    //Returns the total absolute change of the centre coordinates.
+    private double runPackedIteration(int iteration) {
+        long allocatedBytes = IterationMetrics.currentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        int numberOfDataPointsReassigned = engine.assign();
+        long assignNanos = System.nanoTime() - start;
+        if (verbose) {
+            System.out.print("Data points reassigned: " + numberOfDataPointsReassigned);
+            if (engine.isHamerlyBounds()) {
+                System.out.print("\tDistance calculations skipped: " + engine.getDistanceCalculationsSkipped());
+            }
+        }
+        long recolourNanos = listeners.isEmpty() ? 0 : centresAssigned(iteration, engine.getCentres());
+        start = System.nanoTime();
+        double totalCoordValueChange = engine.update();
+        long updateNanos = System.nanoTime() - start;
+        if (verbose) {
+            System.out.println("\tCentroid centres coordinate change: " + totalCoordValueChange);
+        }
+        iterationCompleted(iteration, assignNanos, updateNanos, recolourNanos, numberOfDataPointsReassigned,
+                engine.getInertia(), engine.getEmptyCentres(), engine.getDistanceCalculations(), allocatedBytes);
+        return totalCoordValueChange;
+    }
+
+    //Mini-batch iterations until a batch moves no centre further than the tolerance, maxIterations is reached, or the
+    // time limit runs out.
+    //The centres are then given to the engine for a full assignment and update, unless finalPass is false.
+    private void runMiniBatchIterations(double[][] initialCentres) {
+        MiniBatchKMeans miniBatchKMeans = new MiniBatchKMeans(packedDataPoints, rnd);
+        miniBatchKMeans.setCentres(initialCentres, batchSize);
+        int maxBatches = maxIterations == -1 ? DEFAULT_MINI_BATCH_ITERATIONS : maxIterations;
+        double batchTolerance = tolerance == -1 ? DEFAULT_MINI_BATCH_TOLERANCE : tolerance;
+        int iteration = 0;
+        TerminationReason reason = null;
+        while (reason == null) {
+            iteration++;
+            long allocatedBytes = IterationMetrics.currentThreadAllocatedBytes();
+            long recolourNanos = listeners.isEmpty() ? 0 : centresAssigned(iteration, miniBatchKMeans.getCentres());
+            long start = System.nanoTime();
+            double maxCentreMovement = miniBatchKMeans.iterate();
+            long batchNanos = System.nanoTime() - start;
             if (verbose) {
-                System.out.print('\r');
-                System.out.print("Data points reassigned: ");
+                System.out.println("Mini-batch: " + iteration + "\tLargest centroid movement: " + maxCentreMovement);
             }
-            assignDataPointsToCentroid();
-            System.out.print("\t");
-            counter++;
-            FilePathsAndImageIO.outputImage(ImageManipulation.modifyImageColors(image, this), "progress-images/iteration-" + counter);
-            if (verbose) System.out.print("\tCentroids moved: ");
-            finished = updatedCentroids();
-            System.out.println();
+            //A batch assigns and updates point by point, so its time is all counted as assignment
+            iterationCompleted(iteration, batchNanos, 0, recolourNanos, -1, Double.NaN, -1,
+                    (long) batchSize * initialCentres.length, allocatedBytes);
+            if (maxCentreMovement <= batchTolerance) {
+                reason = TerminationReason.CENTRE_SHIFT;
+            }
+            else if (iteration >= maxBatches) {
+                reason = TerminationReason.MAX_ITERATIONS;
+            }
+            else if (isTimeLimitReached()) {
+                reason = TerminationReason.TIME_LIMIT;
+            }
+            else if (cancelled) {
+                reason = TerminationReason.CANCELLED;
+            }
+        }
+        engine.setCentres(miniBatchKMeans.getCentres());
+        //The final pass is skipped when out of time or cancelled, as it takes as long as a full iteration
+        if (finalPass && reason != TerminationReason.TIME_LIMIT && reason != TerminationReason.CANCELLED) {
+            if (verbose) {
+                System.out.print("Final pass, ");
+            }
+            iteration++;
+            runPackedIteration(iteration);
+        }
+        runCompleted(reason, iteration);
+    }
+
+    //Why to stop after the full iteration, or null to keep going. The inertia is of the centroids before the update.
+    private TerminationReason checkTermination(int iteration, boolean converged, double maxCentreShift,
+                                               double inertia, double previousInertia) {
+        if (converged) {
+            return TerminationReason.CONVERGED;
+        }
+        if (cancelled) {
+            return TerminationReason.CANCELLED;
+        }
+        if (tolerance != -1 && maxCentreShift <= tolerance) {
+            return TerminationReason.CENTRE_SHIFT;
+        }
+        if (minImprovement > 0 && previousInertia > 0 && previousInertia - inertia < minImprovement * previousInertia) {
+            return TerminationReason.MIN_IMPROVEMENT;
+        }
+        if (maxIterations != -1 && iteration >= maxIterations) {
+            return TerminationReason.MAX_ITERATIONS;
+        }
+        if (isTimeLimitReached()) {
+            return TerminationReason.TIME_LIMIT;
+        }
+        return null;
+    }
+
+    //The time limit is only checked between iterations, so a run can go over it by up to one iteration
+    private boolean isTimeLimitReached() {
+        return timeLimitMillis > 0 && System.nanoTime() - runStartNanos >= timeLimitMillis * 1_000_000;
+    }
+
+    private void runCompleted(TerminationReason reason, int iterations) {
+        this.terminationReason = reason;
+        this.iterations = iterations;
+        if (verbose) {
+            System.out.println("Finished after " + iterations + " iterations: " + reason);
+        }
+        if (sweeping) {
+            return;
+        }
+        for (KMeansListener listener : listeners) {
+            listener.runCompleted(reason, iterations);
+        }
+    }
+
+    //Stops the run in progress after its current iteration, and any later run after its first, keeping the centroids
+    // found so far. Can be called from any thread. With "auto-k", no larger k is tried.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    //Why the last run stopped, null before the first run
+    public TerminationReason getTerminationReason() {
+        return terminationReason;
+    }
+
+    //Number of iterations of the last run, including any mini-batches and final pass
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void addListener(KMeansListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(KMeansListener listener) {
+        listeners.remove(listener);
+    }
+
+    //Tells the listeners an image was recoloured with the centroids, taking recolourNanos
+    public void imageRecoloured(long recolourNanos) {
+        for (KMeansListener listener : listeners) {
+            listener.imageRecoloured(recolourNanos);
+        }
+    }
+
+    //Tells the listeners the centres the data points were assigned to, returning the nanoseconds taken
+    private long centresAssigned(int iteration, double[][] centres) {
+        if (listeners.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        Palette palette = new Palette(colourSpace, centres);
+        for (KMeansListener listener : listeners) {
+            listener.centresAssigned(iteration, palette);
+        }
+        return System.nanoTime() - start;
+    }
+
+    //allocatedBytes is the allocation count of the thread when the iteration started
+    private void iterationCompleted(int iteration, long assignNanos, long updateNanos, long recolourNanos,
+                                    long dataPointsReassigned, double inertia, int emptyCentroids,
+                                    long distanceCalculations, long allocatedBytes) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        long allocatedBytesNow = IterationMetrics.currentThreadAllocatedBytes();
+        IterationMetrics metrics = new IterationMetrics(iteration, assignNanos, updateNanos, recolourNanos,
+                dataPointsReassigned, inertia, emptyCentroids, distanceCalculations,
+                allocatedBytes == -1 || allocatedBytesNow == -1 ? -1 : allocatedBytesNow - allocatedBytes);
+        for (KMeansListener listener : listeners) {
+            listener.iterationCompleted(metrics);
+        }
+    }
+
+    //Sum of the squared distances from the data points to the centroids of their last assignment
+    public double getInertia() {
+        return packedDataPoints != null ? engine.getInertia() : getObjectInertia();
+    }
+
+    //Sum of the squared distances from the data points to the centroids they are assigned to
+    private double getObjectInertia() {
+        double inertia = 0;
+        for (Centroid centroid : centroids) {
+            for (DataPoint dataPoint : centroid.getDataPoints()) {
+                inertia += centroid.squaredDistance(dataPoint);
+            }
+        }
+        return inertia;
+    }
+
+    private double[][] getCentres() {
+        double[][] centres = new double[centroids.length][];
+        for (int i = 0; i < centroids.length; i++) {
+            centres[i] = centroids[i].getCentreCoords();
+        }
+        return centres;
+    }
+
+    //Largest distance any centroid moved from the old centres
+    private double getMaxCentreShift(double[][] oldCentres) {
+        double maxSquaredShift = 0;
+        for (int i = 0; i < centroids.length; i++) {
+            double[] centre = centroids[i].getCentreCoords();
+            double squaredShift = 0;
+            for (int coordIndex = 0; coordIndex < centre.length; coordIndex++) {
+                double difference = centre[coordIndex] - oldCentres[i][coordIndex];
+                squaredShift += difference * difference;
+            }
+            maxSquaredShift = Math.max(maxSquaredShift, squaredShift);
+        }
+        return Math.sqrt(maxSquaredShift);
+    }
+
+    private int getEmptyCentroids() {
+        int emptyCentroids = 0;
+        for (Centroid centroid : centroids) {
+            if (centroid.getDataPoints().isEmpty()) {
+                emptyCentroids++;
+            }
+        }
+        return emptyCentroids;
+    }
+
+    //Centroids of the packed engine hold only their centre, not their data points
+    private void updateCentroidsFromEngine() {
+        double[][] centres = engine.getCentres();
+        for (int i = 0; i < centroids.length; i++) {
+            centroids[i] = new Centroid(centres[i].clone());
         }
     }
 
@@ -97,11 +710,106 @@ public class KMeansAlgorithm {
         initialCentroidsMethod.accept(k);
     }
 
+    private int numDataPoints() {
+        return packedDataPoints != null ? packedDataPoints.size() : dataPoints.size();
+    }
+
+    private int getCoord(int dataPointIndex, int coordIndex) {
+        return packedDataPoints != null ?
+                packedDataPoints.getCoord(dataPointIndex, coordIndex)
+                : dataPoints.get(dataPointIndex).getCoord(coordIndex);
+    }
+
+    private DataPoint getDataPoint(int dataPointIndex) {
+        if (packedDataPoints == null) {
+            return dataPoints.get(dataPointIndex);
+        }
+        int[] coords = new int[numCoords];
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            coords[coordIndex] = packedDataPoints.getCoord(dataPointIndex, coordIndex);
+        }
+        return new DataPoint(coords);
+    }
+
     private void initialCentroidsRandomDataPoints(int k) {
-        Random rnd = new Random();
         centroids = new Centroid[k];
         for (int i = 0; i < centroids.length; i++) {
-            centroids[i] = new Centroid(dataPoints.get(rnd.nextInt(dataPoints.size())));
+            //Weighted points are picked as often as the pixels they stand for would be
+            int dataPointIndex = packedDataPoints != null ?
+                    packedDataPoints.sampleWeighted(rnd)
+                    : rnd.nextInt(dataPoints.size());
+            centroids[i] = new Centroid(getDataPoint(dataPointIndex));
+        }
+    }
+
+    private void initialCentroidsKMeansPlusPlus(int k) {
+        setCentroids(newCentroidSeeding().kMeansPlusPlus(k, 1));
+    }
+
+    //Greedy k-means++ tries 2 + ln(k) samples for each centroid, as suggested by Arthur and Vassilvitskii
+    private void initialCentroidsGreedyKMeansPlusPlus(int k) {
+        setCentroids(newCentroidSeeding().kMeansPlusPlus(k, 2 + (int) Math.log(k)));
+    }
+
+    private void initialCentroidsKMeansParallel(int k) {
+        setCentroids(newCentroidSeeding().kMeansParallel(k, seedingRounds, oversamplingFactor));
+    }
+
+    private CentroidSeeding newCentroidSeeding() {
+        if (packedDataPoints != null) {
+            return new CentroidSeeding(packedDataPoints, rnd, engine.getPool(), engine.getSeedingBuffers());
+        }
+        return new CentroidSeeding(PackedDataPoints.fromDataPoints(dataPoints), rnd, null);
+    }
+
+    private void setCentroids(int[][] centres) {
+        centroids = new Centroid[centres.length];
+        for (int i = 0; i < centroids.length; i++) {
+            centroids[i] = new Centroid(new DataPoint(centres[i]));
+        }
+    }
+
+    //Starts from the centres of a palette, e.g. of a previous run or a similar image, with the "palette"
+    // initialization. If the palette has fewer than k colours, the rest are picked by k-means++.
+    public void setInitialPalette(Palette palette) {
+        if (palette.getColourSpace() == colourSpace) {
+            initialPaletteCentres = palette.getCentres();
+        }
+        else {
+            int[] colors = palette.getColors();
+            initialPaletteCentres = new double[colors.length][];
+            for (int i = 0; i < colors.length; i++) {
+                int[] coords = colourSpace.toCoords(colors[i]);
+                initialPaletteCentres[i] = new double[] {coords[0], coords[1], coords[2]};
+            }
+        }
+        if (initialPaletteCentres[0].length != numCoords) {
+            throw new IllegalArgumentException("Palette centres must have same number of coordinates as the data points: " +
+                    initialPaletteCentres[0].length + " != " + numCoords);
+        }
+    }
+
+    private void initialCentroidsPalette(int k) {
+        if (initialPaletteCentres == null) {
+            throw new IllegalArgumentException("\"palette\" initialization requires an \"initial-palette\".");
+        }
+        if (initialPaletteCentres.length > k) {
+            throw new IllegalArgumentException("Initial palette has more colours than k: " +
+                    initialPaletteCentres.length + " > " + k);
+        }
+        centroids = new Centroid[k];
+        for (int i = 0; i < initialPaletteCentres.length; i++) {
+            centroids[i] = new Centroid(initialPaletteCentres[i].clone());
+        }
+        if (initialPaletteCentres.length < k) {
+            int[][] roundedCentres = new int[initialPaletteCentres.length][];
+            for (int i = 0; i < roundedCentres.length; i++) {
+                roundedCentres[i] = centroids[i].getCentre().getCoords();
+            }
+            int[][] centres = newCentroidSeeding().kMeansPlusPlus(roundedCentres, k, 1);
+            for (int i = initialPaletteCentres.length; i < k; i++) {
+                centroids[i] = new Centroid(new DataPoint(centres[i]));
+            }
         }
     }
 
@@ -110,22 +818,23 @@ public class KMeansAlgorithm {
 
         int[] maxCoords = new int[numCoords];
         int[] minCoords = new int[numCoords];
-        System.arraycopy(dataPoints.get(0).getCoords(), 0, maxCoords, 0, numCoords);
-        System.arraycopy(dataPoints.get(0).getCoords(), 0, minCoords, 0, numCoords);
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            maxCoords[coordIndex] = getCoord(0, coordIndex);
+            minCoords[coordIndex] = getCoord(0, coordIndex);
+        }
 
-        for (int i = 1; i < dataPoints.size(); i++) {
-            int[] coords = dataPoints.get(i).getCoords();
+        for (int i = 1; i < numDataPoints(); i++) {
             for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
-                if (maxCoords[coordIndex] < coords[coordIndex]){
-                    maxCoords[coordIndex] = coords[coordIndex];
+                int coord = getCoord(i, coordIndex);
+                if (maxCoords[coordIndex] < coord){
+                    maxCoords[coordIndex] = coord;
                 }
-                if (minCoords[coordIndex] > coords[coordIndex]){
-                    minCoords[coordIndex] = coords[coordIndex];
+                if (minCoords[coordIndex] > coord){
+                    minCoords[coordIndex] = coord;
                 }
             }
         }
 
-        Random rnd = new Random();
         for (int i = 0; i < centroids.length; i++) {
             int[] coords = new int[numCoords];
             for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
@@ -142,15 +851,14 @@ public class KMeansAlgorithm {
         }
     }
 
-    public void assignDataPointsToCentroid() {
+    //Returns the number of data points that changed centroid
+    public int assignDataPointsToCentroid() {
         Arrays.stream(centroids).forEach(Centroid::resetDataPoints);
         int numberOfDataPointsReassigned = 0;
         for (DataPoint dataPoint : dataPoints) {
             Centroid minCentroid = getClosestCentroid(dataPoint);
-            if (verbose) {
-                if (dataPoint.getCentroid() != minCentroid) {
-                    numberOfDataPointsReassigned++;
-                }
+            if (dataPoint.getCentroid() != minCentroid) {
+                numberOfDataPointsReassigned++;
             }
             dataPoint.setCentroid(minCentroid);
             minCentroid.addDataPoint(dataPoint);
@@ -158,14 +866,15 @@ public class KMeansAlgorithm {
         if (verbose) {
             System.out.print(numberOfDataPointsReassigned);
         }
+        return numberOfDataPointsReassigned;
     }
 
     public Centroid getClosestCentroid(DataPoint dataPoint){
-        double minDistance = dataPoint.distance(centroids[0].getCentre());
+        double minDistance = centroids[0].squaredDistance(dataPoint);
         Centroid minCentroid = centroids[0];
         for (int i = 1; i < centroids.length; i++) {
             Centroid centroid = centroids[i];
-            double distance = dataPoint.distance(centroid.getCentre());
+            double distance = centroid.squaredDistance(dataPoint);
             if (distance < minDistance) {
                 minDistance = distance;
                 minCentroid = centroid;
@@ -175,48 +884,29 @@ public class KMeansAlgorithm {
     }
 
     public boolean updateCentroids() {
-        int numCentroids = centroids.length;
-        DataPoint[] oldCentres = new DataPoint[numCentroids];
-        for (int i = 0; i < numCentroids; i++) {
-            oldCentres[i] = centroids[i].getCentre();
-        }
+        double[][] oldCentres = getCentres();
 
         Arrays.stream(centroids).forEach(Centroid::reassignCentre);
 
-        DataPoint[] newCentres = Arrays.stream(centroids)
-                .map(Centroid::getCentre)
-                .toArray(DataPoint[]::new);
-
-        for (int i = 0; i < numCentroids; i++) {
-            if (!newCentres[i].equals(oldCentres[i])) {
-                return false;
-            }
-        }
-        return true;
+        return checkCentroidCentresForChange(oldCentres, getCentres(), centroids.length);
     }
 
     public boolean updatedCentroids() {
-        int numCentroids = centroids.length;
-        DataPoint[] oldCentres = new DataPoint[numCentroids];
-        for (int i = 0; i < numCentroids; i++) {
-            oldCentres[i] = centroids[i].getCentre();
-        }
+        double[][] oldCentres = getCentres();
 
         Arrays.stream(centroids).forEach(Centroid::reassignCentre);
 
-        DataPoint[] newCentres = Arrays.stream(centroids)
-                .map(Centroid::getCentre)
-                .toArray(DataPoint[]::new);
+        double[][] newCentres = getCentres();
 
         return verbose ?
-                checkCentroidCentresForChangeVerbose(oldCentres, newCentres, numCentroids)
-                : checkCentroidCentresForChange(oldCentres, newCentres, numCentroids);
+                checkCentroidCentresForChangeVerbose(oldCentres, newCentres, centroids.length)
+                : checkCentroidCentresForChange(oldCentres, newCentres, centroids.length);
     }
 
     //old centres and new centres should have same length, numCentroids
-    private boolean checkCentroidCentresForChange(DataPoint[] oldCentres, DataPoint[] newCentres, int numCentroids) {
+    private boolean checkCentroidCentresForChange(double[][] oldCentres, double[][] newCentres, int numCentroids) {
         for (int i = 0; i < numCentroids; i++) {
-            if (!newCentres[i].equals(oldCentres[i])) {
+            if (!Arrays.equals(newCentres[i], oldCentres[i])) {
                 return false;
             }
         }
@@ -224,12 +914,12 @@ public class KMeansAlgorithm {
     }
 
     //old centres and new centres should have same length, numCentroids
-    private boolean checkCentroidCentresForChangeVerbose(DataPoint[] oldCentres, DataPoint[] newCentres, int numCentroids) {
-        int totalCoordValueChange = 0;
-        int centreCoords = newCentres[0].getCoords().length;
+    private boolean checkCentroidCentresForChangeVerbose(double[][] oldCentres, double[][] newCentres, int numCentroids) {
+        double totalCoordValueChange = 0;
+        int centreCoords = newCentres[0].length;
         for (int i = 0; i < numCentroids; i++) {
             for (int j = 0; j < centreCoords; j++) {
-                totalCoordValueChange += Math.abs(newCentres[i].getCoords()[j] - oldCentres[i].getCoords()[j]);
+                totalCoordValueChange += Math.abs(newCentres[i][j] - oldCentres[i][j]);
             }
         }
         System.out.print(totalCoordValueChange);
@@ -240,10 +930,25 @@ public class KMeansAlgorithm {
         return centroids;
     }
 
+    //Palette of the current centroid centres, which must be colours in the "colour-space"
+    public Palette getPalette() {
+        double[][] centres = new double[centroids.length][];
+        for (int i = 0; i < centroids.length; i++) {
+            centres[i] = centroids[i].getCentreCoords();
+        }
+        return new Palette(colourSpace, centres);
+    }
+
+    //null when constructed with PackedDataPoints
     public List<DataPoint> getDataPoints() {
         return dataPoints;
     }
 
+    //null when constructed with a list of DataPoints
+    public PackedDataPoints getPackedDataPoints() {
+        return packedDataPoints;
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
@@ -0,0 +1,19 @@
+/**
+ * Listener for the progress of the KMeansAlgorithm, told the metrics of every iteration.
+ */
+public interface KMeansListener {
+    void iterationCompleted(IterationMetrics metrics);
+
+    //Called after every iteration assigns the data points, with a palette of the centres they were assigned to.
+    //Mini-batch iterations give the centres before the batch.
+    default void centresAssigned(int iteration, Palette palette) {
+    }
+
+    //Called when an image is recoloured with the centroids, taking recolourNanos
+    default void imageRecoloured(long recolourNanos) {
+    }
+
+    //Called when the algorithm stops iterating, after the given number of iterations
+    default void runCompleted(TerminationReason reason, int iterations) {
+    }
+}
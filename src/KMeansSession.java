@@ -0,0 +1,212 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Compresses a stream of images one after another with the same properties, e.g. in a long running service, reusing
+ *  the working buffers of every stage between images instead of allocating them for each image: the RGB values, the
+ *  packed data points or colour histogram, the colour space conversion cache, the engine's assignments, bounds,
+ *  seeding distances and threads, and the palette's lookup table. Buffers are only grown when an image needs more
+ *  than any image before it, and kept until the session is closed.
+ * A compression can be cancelled from another thread, stopping after its current iteration, and the listeners are
+ *  told the progress of every iteration of every image, as for a KMeansAlgorithm.
+ * A session compresses one image at a time, so isn't thread safe except for cancel, and requires the "packed" engine.
+ */
+public class KMeansSession implements Closeable {
+    private final Map<String, String> properties;
+    private final ColourSpace colourSpace;
+    //0 to cluster every pixel
+    private final int histogramBits;
+    private final boolean indexed;
+    private final Dithering dithering;
+    private final PaletteCache paletteCache;
+    private final JsonLinesMetricsSink metricsSink;
+    private final List<KMeansListener> listeners = new ArrayList<>();
+
+    private int[] rgbData = new int[0];
+    private int[][] channels = new int[3][0];
+    private int[] weights;
+    private int[] histogram;
+    private char[] lookupTable;
+    private long[] conversionCache;
+    private PackedKMeansEngine engine;
+    private Palette palette;
+
+    //Set by cancel, and cleared when a compression is stopped by it
+    private volatile boolean cancelled = false;
+    private volatile KMeansAlgorithm running;
+
+    public KMeansSession(Map<String, String> properties) {
+        if (!properties.getOrDefault("engine", "packed").equals("packed")) {
+            throw new IllegalArgumentException("A KMeansSession requires the \"packed\" engine.");
+        }
+        if (properties.containsKey("streaming") && properties.get("streaming").equals("true")) {
+            throw new IllegalArgumentException("\"streaming\" can't be used with a KMeansSession.");
+        }
+        if (properties.containsKey("intermediate-images") && properties.get("intermediate-images").equals("true")) {
+            throw new IllegalArgumentException("\"intermediate-images\" can't be used with a KMeansSession. " +
+                    "Add a ProgressImageWriter as a listener instead.");
+        }
+        if (PyramidClustering.getLevels(properties) > 1) {
+            throw new IllegalArgumentException("\"pyramid\" can't be used with a KMeansSession.");
+        }
+        this.properties = properties;
+        colourSpace = ColourSpace.fromProperties(properties);
+        histogramBits = properties.containsKey("histogram") ? ImageManipulation.getHistogramBits(properties) : 0;
+        indexed = ImageManipulation.isIndexed(properties);
+        dithering = Dithering.fromProperties(properties);
+        paletteCache = PaletteCache.fromProperties(properties);
+        //One metrics file for the whole session, numbering the iterations of each image from 1
+        metricsSink = ImageManipulation.openMetricsSink(properties);
+    }
+
+    //Listeners are added to the clustering of every image compressed after
+    public void addListener(KMeansListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(KMeansListener listener) {
+        listeners.remove(listener);
+    }
+
+    //Clusters the colours of the image and recolours it in place, or with the "indexed" property returns a new
+    // indexed image, as ImageManipulation.compressImageToKColors does.
+    //Throws a CancellationException if cancelled before the image is recoloured, leaving the image unchanged. A
+    // cancel while the image is being recoloured stops the next compression instead.
+    public BufferedImage compressImageToKColors(BufferedImage image, int k) {
+        ImageManipulation.checkIndexed(k, properties);
+        try {
+            PackedDataPoints packedDataPoints = getPackedDataPoints(image);
+            String paletteCacheKey = null;
+            double[][] centres = null;
+            if (paletteCache != null) {
+                paletteCacheKey = PaletteCache.key(packedDataPoints, k, properties);
+                Palette cached = paletteCache.get(paletteCacheKey);
+                if (cached != null) {
+                    if (properties.containsKey("verbose") && properties.get("verbose").equals("true")) {
+                        System.out.println("Palette cache hit: " + paletteCacheKey);
+                    }
+                    centres = cached.getCentres();
+                }
+            }
+            KMeansAlgorithm kMeansAlgorithm = null;
+            if (centres == null) {
+                if (engine == null) {
+                    engine = new PackedKMeansEngine(packedDataPoints);
+                }
+                kMeansAlgorithm = new KMeansAlgorithm(packedDataPoints, engine, properties);
+                for (KMeansListener listener : listeners) {
+                    kMeansAlgorithm.addListener(listener);
+                }
+                if (metricsSink != null) {
+                    kMeansAlgorithm.addListener(metricsSink);
+                }
+                running = kMeansAlgorithm;
+                //Cancelled before the algorithm could be
+                if (cancelled) {
+                    kMeansAlgorithm.cancel();
+                }
+                kMeansAlgorithm.kmeans(k);
+                if (kMeansAlgorithm.getTerminationReason() == TerminationReason.CANCELLED) {
+                    cancelled = false;
+                    throw new CancellationException("Compression cancelled after " + kMeansAlgorithm.getIterations() +
+                            " iterations");
+                }
+                centres = kMeansAlgorithm.getPalette().getCentres();
+                if (paletteCache != null && PaletteCache.isCacheable(kMeansAlgorithm.getTerminationReason())) {
+                    paletteCache.put(paletteCacheKey, kMeansAlgorithm.getPalette());
+                }
+            }
+            //Cancelled after the clustering finished, or before a palette found in the cache is used
+            if (cancelled) {
+                cancelled = false;
+                throw new CancellationException("Compression cancelled before recolouring");
+            }
+
+            if (lookupTable == null) {
+                lookupTable = new char[Palette.TABLE_SIZE];
+            }
+            palette = new Palette(colourSpace, centres, lookupTable);
+            ImageManipulation.exportPalette(palette, properties);
+            long start = System.nanoTime();
+            image = indexed ? ImageManipulation.toIndexedImage(image, palette, dithering)
+                    : ImageManipulation.modifyImageColors(image, palette, dithering);
+            if (kMeansAlgorithm != null) {
+                kMeansAlgorithm.imageRecoloured(System.nanoTime() - start);
+            }
+            return image;
+        } finally {
+            running = null;
+        }
+    }
+
+    //Packs the pixels, or their histogram, into the session's buffers, growing them if the image has more pixels
+    private PackedDataPoints getPackedDataPoints(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int pixels = width * height;
+        if (rgbData.length < pixels) {
+            rgbData = new int[pixels];
+        }
+        image.getRGB(0, 0, width, height, rgbData, 0, width);
+        PackedDataPoints packedDataPoints;
+        if (histogramBits != 0) {
+            if (histogram == null) {
+                histogram = PackedDataPoints.newHistogram(histogramBits);
+            }
+            //An image has at most as many colours as pixels
+            int maxColors = Math.min(pixels, histogram.length);
+            if (weights == null || weights.length < maxColors) {
+                weights = new int[maxColors];
+            }
+            growChannels(maxColors);
+            PackedDataPoints.addToHistogram(histogram, rgbData, pixels, histogramBits);
+            packedDataPoints = PackedDataPoints.fromHistogram(histogram, histogramBits, channels, weights, true);
+        }
+        else {
+            growChannels(pixels);
+            packedDataPoints = PackedDataPoints.fromRGB(rgbData, width, height, channels);
+        }
+        if (colourSpace != ColourSpace.SRGB) {
+            if (conversionCache == null) {
+                conversionCache = new long[ColourSpace.CONVERSION_CACHE_SIZE];
+            }
+            colourSpace.convertFromRGB(packedDataPoints, conversionCache);
+        }
+        return packedDataPoints;
+    }
+
+    private void growChannels(int size) {
+        if (channels[0].length < size) {
+            channels = new int[3][size];
+        }
+    }
+
+    //Stops the compression in progress after its current iteration, or before it recolours the image, or else the next
+    // compression.
+    //Can be called from any thread.
+    public void cancel() {
+        cancelled = true;
+        KMeansAlgorithm kMeansAlgorithm = running;
+        if (kMeansAlgorithm != null) {
+            kMeansAlgorithm.cancel();
+        }
+    }
+
+    //Palette of the last image compressed, or null before the first
+    public Palette getPalette() {
+        return palette == null ? null : new Palette(colourSpace, palette.getCentres());
+    }
+
+    //Releases the threads of the engine and closes the metrics file. The buffers are freed with the session.
+    @Override
+    public void close() {
+        if (engine != null) {
+            engine.shutdown();
+        }
+        ImageManipulation.closeMetricsSink(metricsSink);
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.Random;
+
+/**
+ * Mini-batch k-means (Sculley, 2010) over PackedDataPoints.
+ * Each iteration samples a batch of points, assigns them to their closest centres, and moves each centre towards
+ *  its points with a learning rate of one over the total weight the centre has been given so far.
+ * Points are sampled with a probability proportional to their weight, so a batch of a colour histogram is a
+ *  batch of pixels.
+ */
+public class MiniBatchKMeans {
+    private final PackedDataPoints points;
+    private final int[][] channels;
+    private final int numCoords;
+    private final Random rnd;
+
+    private double[][] centres;
+    //Total weight of the points each centre has been moved towards
+    private long[] centreWeights;
+    private double[][] batchStartCentres;
+    private int[] batch;
+    private int[] batchCentres;
+
+    public MiniBatchKMeans(PackedDataPoints points, Random rnd) {
+        this.points = points;
+        this.numCoords = points.getNumCoords();
+        this.channels = new int[numCoords][];
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            channels[coordIndex] = points.getChannel(coordIndex);
+        }
+        this.rnd = rnd;
+    }
+
+    public void setCentres(double[][] initialCentres, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        centres = new double[initialCentres.length][];
+        for (int i = 0; i < initialCentres.length; i++) {
+            centres[i] = initialCentres[i].clone();
+        }
+        batchStartCentres = new double[initialCentres.length][numCoords];
+        centreWeights = new long[initialCentres.length];
+        batch = new int[batchSize];
+        batchCentres = new int[batchSize];
+    }
+
+    //Runs one mini-batch iteration. Returns the largest distance any centre moved.
+    public double iterate() {
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = points.sampleWeighted(rnd);
+        }
+        //Points are assigned to the centres from the start of the batch
+        for (int i = 0; i < batch.length; i++) {
+            batchCentres[i] = getClosestCentre(batch[i]);
+        }
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            System.arraycopy(centres[centreIndex], 0, batchStartCentres[centreIndex], 0, numCoords);
+        }
+
+        for (int i = 0; i < batch.length; i++) {
+            int centreIndex = batchCentres[i];
+            double[] centre = centres[centreIndex];
+            //Sampling already accounts for the weights, so every sampled point counts once
+            centreWeights[centreIndex]++;
+            double learningRate = 1.0 / centreWeights[centreIndex];
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                centre[coordIndex] += learningRate * (channels[coordIndex][batch[i]] - centre[coordIndex]);
+            }
+        }
+
+        double maxSquaredMovement = 0;
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            double squaredMovement = 0;
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                double difference = centres[centreIndex][coordIndex] - batchStartCentres[centreIndex][coordIndex];
+                squaredMovement += difference * difference;
+            }
+            maxSquaredMovement = Math.max(maxSquaredMovement, squaredMovement);
+        }
+        return Math.sqrt(maxSquaredMovement);
+    }
+
+    private int getClosestCentre(int pointIndex) {
+        int minCentre = 0;
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            double[] centre = centres[centreIndex];
+            double distance = 0;
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                double difference = channels[coordIndex][pointIndex] - centre[coordIndex];
+                distance += difference * difference;
+            }
+            if (distance < minDistance) {
+                minDistance = distance;
+                minCentre = centreIndex;
+            }
+        }
+        return minCentre;
+    }
+
+    public double[][] getCentres() {
+        double[][] copy = new double[centres.length][];
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            copy[centreIndex] = centres[centreIndex].clone();
+        }
+        return copy;
+    }
+}
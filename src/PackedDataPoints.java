@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Data points stored as a structure of primitive arrays, one array per coordinate,
+ *  instead of one DataPoint object per point.
+ * Points can be weighted, e.g. by how many pixels have that colour, so a colour histogram can be clustered
+ *  instead of every pixel.
+ */
+public class PackedDataPoints {
+    //channels[coordIndex][pointIndex]
+    private final int[][] channels;
+    //null if every point has a weight of 1
+    private final int[] weights;
+    private final int size;
+    private final long totalWeight;
+    //Running totals of the weights, computed when first sampled from
+    private long[] cumulativeWeights;
+
+    public PackedDataPoints(int[][] channels) {
+        this(channels, null);
+    }
+
+    public PackedDataPoints(int[][] channels, int[] weights) {
+        this(channels, weights, channels.length == 0 ? 0 : channels[0].length);
+        for (int[] channel : channels) {
+            if (channel.length != size) {
+                throw new IllegalArgumentException("All coordinate channels must have the same length.");
+            }
+        }
+        if (weights != null && weights.length != size) {
+            throw new IllegalArgumentException("There must be one weight per data point: " +
+                    weights.length + " != " + size);
+        }
+    }
+
+    //The first size values of the arrays, which can be longer, e.g. buffers reused by a KMeansSession
+    public PackedDataPoints(int[][] channels, int[] weights, int size) {
+        if (channels.length == 0) {
+            throw new IllegalArgumentException("Array of coordinate channels must not be less than 1");
+        }
+        for (int[] channel : channels) {
+            if (channel.length < size) {
+                throw new IllegalArgumentException("Coordinate channels must have at least " + size + " values: " +
+                        channel.length + " given");
+            }
+        }
+        if (weights != null && weights.length < size) {
+            throw new IllegalArgumentException("There must be one weight per data point: " +
+                    weights.length + " < " + size);
+        }
+        this.size = size;
+        this.channels = channels;
+        this.weights = weights;
+        if (weights == null) {
+            totalWeight = size;
+        }
+        else {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                int weight = weights[i];
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("Data point weights must be positive: " + weight);
+                }
+                total += weight;
+            }
+            totalWeight = total;
+        }
+    }
+
+    //Packs RGB values in the same (column major) order as ImageManipulation.getDataPoints
+    public static PackedDataPoints fromRGB(int[] rgbData, int width, int height) {
+        return fromRGB(rgbData, width, height, new int[3][width * height]);
+    }
+
+    //Packs the RGB values into the channels, which must have room for width * height points
+    public static PackedDataPoints fromRGB(int[] rgbData, int width, int height, int[][] channels) {
+        int[] red = channels[0];
+        int[] green = channels[1];
+        int[] blue = channels[2];
+        int i = 0;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int rgbValue = rgbData[(y * width) + x];
+                red[i] = (rgbValue >> 16) & 0xFF;
+                green[i] = (rgbValue >> 8) & 0xFF;
+                blue[i] = rgbValue & 0xFF;
+                i++;
+            }
+        }
+        return new PackedDataPoints(channels, null, width * height);
+    }
+
+    //Packs the unique colours of the RGB values, weighted by the number of pixels of each colour.
+    //With less than 8 bits per channel, colours are first quantised to the centre of their bucket.
+    public static PackedDataPoints histogramFromRGB(int[] rgbData, int bitsPerChannel) {
+        int[] counts = newHistogram(bitsPerChannel);
+        addToHistogram(counts, rgbData, rgbData.length, bitsPerChannel);
+        return fromHistogram(counts, bitsPerChannel);
+    }
+
+    //Histogram of pixel counts for every colour quantised to bitsPerChannel, indexed by histogramIndex
+    public static int[] newHistogram(int bitsPerChannel) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+            throw new IllegalArgumentException("Bits per channel must be between 1 and 8: " + bitsPerChannel);
+        }
+        return new int[1 << (3 * bitsPerChannel)];
+    }
+
+    //Counts the first length RGB values into the histogram
+    public static void addToHistogram(int[] counts, int[] rgbData, int length, int bitsPerChannel) {
+        for (int i = 0; i < length; i++) {
+            counts[histogramIndex(rgbData[i], bitsPerChannel)]++;
+        }
+    }
+
+    //Packs the colours with a non-zero count in the histogram, weighted by their count
+    public static PackedDataPoints fromHistogram(int[] counts, int bitsPerChannel) {
+        int numColors = 0;
+        for (int count : counts) {
+            if (count != 0) {
+                numColors++;
+            }
+        }
+        return fromHistogram(counts, bitsPerChannel, new int[3][numColors], new int[numColors], false);
+    }
+
+    //Packs the colours with a non-zero count into the channels and weights, which must have room for them all.
+    //With clear, the counts are set back to 0 as they are read, so the histogram can be reused.
+    public static PackedDataPoints fromHistogram(int[] counts, int bitsPerChannel, int[][] channels, int[] weights,
+                                                 boolean clear) {
+        int shift = 8 - bitsPerChannel;
+        int[] red = channels[0];
+        int[] green = channels[1];
+        int[] blue = channels[2];
+        int mask = (1 << bitsPerChannel) - 1;
+        //Quantised values are moved to the middle of the range of values they represent
+        int bucketCentre = shift == 0 ? 0 : 1 << (shift - 1);
+        int i = 0;
+        for (int index = 0; index < counts.length; index++) {
+            if (counts[index] == 0) {
+                continue;
+            }
+            red[i] = ((index >> (2 * bitsPerChannel)) << shift) | bucketCentre;
+            green[i] = (((index >> bitsPerChannel) & mask) << shift) | bucketCentre;
+            blue[i] = ((index & mask) << shift) | bucketCentre;
+            weights[i] = counts[index];
+            if (clear) {
+                counts[index] = 0;
+            }
+            i++;
+        }
+        return new PackedDataPoints(channels, weights, i);
+    }
+
+    protected static int histogramIndex(int rgbValue, int bitsPerChannel) {
+        int shift = 8 - bitsPerChannel;
+        int colorRed = ((rgbValue >> 16) & 0xFF) >> shift;
+        int colorGreen = ((rgbValue >> 8) & 0xFF) >> shift;
+        int colorBlue = (rgbValue & 0xFF) >> shift;
+        return (((colorRed << bitsPerChannel) | colorGreen) << bitsPerChannel) | colorBlue;
+    }
+
+    public static PackedDataPoints fromDataPoints(List<DataPoint> dataPoints) {
+        if (dataPoints.isEmpty()) {
+            throw new IllegalArgumentException("List of data points must not be empty");
+        }
+        int numCoords = dataPoints.get(0).getCoords().length;
+        int[][] channels = new int[numCoords][dataPoints.size()];
+        for (int i = 0; i < dataPoints.size(); i++) {
+            int[] coords = dataPoints.get(i).getCoords();
+            if (coords.length != numCoords) {
+                throw new IllegalArgumentException("All data points must have the same number of coordinates.");
+            }
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                channels[coordIndex][i] = coords[coordIndex];
+            }
+        }
+        return new PackedDataPoints(channels);
+    }
+
+    public int getCoord(int pointIndex, int coordIndex) {
+        return channels[coordIndex][pointIndex];
+    }
+
+    public int getWeight(int pointIndex) {
+        return weights == null ? 1 : weights[pointIndex];
+    }
+
+    //null if every point has a weight of 1. The weights of the points are the first size().
+    public int[] getWeights() {
+        return weights;
+    }
+
+    public long getTotalWeight() {
+        return totalWeight;
+    }
+
+    public boolean isWeighted() {
+        return weights != null;
+    }
+
+    //Picks a point index at random, with a probability proportional to the point's weight
+    public int sampleWeighted(Random rnd) {
+        if (weights == null) {
+            return rnd.nextInt(size);
+        }
+        if (cumulativeWeights == null) {
+            cumulativeWeights = new long[size];
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += weights[i];
+                cumulativeWeights[i] = total;
+            }
+        }
+        long target = (long) (rnd.nextDouble() * totalWeight);
+        int i = Arrays.binarySearch(cumulativeWeights, target + 1);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    //The values of the points are the first size() of the channel
+    public int[] getChannel(int coordIndex) {
+        return channels[coordIndex];
+    }
+
+    public int getNumCoords() {
+        return channels.length;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,568 @@
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lloyd's k-means iterations over PackedDataPoints.
+ * Weighted points count as that many points with the same coordinates, so centres are weighted means.
+ * The assignment of points to centroids is kept as an int[] of centroid indices, and the new centres are
+ *  computed from running sums, so no objects are allocated per point or per iteration.
+ * Centres are kept as exact double means of the long sums, and are only rounded when made into a Palette.
+ *  Points are compared to them by squared distance.
+ * With Hamerly's bounds, each point keeps an upper bound on the distance to its centre and a lower bound on the
+ *  distance to every other centre. These are moved with the centres every update, and the distances are only
+ *  calculated when the bounds no longer show that the point's centre is the closest.
+ * With the "vector" kernel, Lloyd's assignment finds the closest centres a block of points at a time with a
+ *  VectorAssignmentKernel, if it was compiled and the jdk.incubator.vector module was added, with the same result.
+ * With more than one thread the points are split into chunks that are assigned on a ForkJoinPool, each chunk
+ *  accumulating its own partial sums that are merged afterwards. The sums are exact integers, so the result does
+ *  not depend on the number of threads.
+ * An engine can be given new points with setPoints, reusing its buffers and threads, as a KMeansSession does.
+ */
+public class PackedKMeansEngine {
+    private PackedDataPoints points;
+    private int[][] channels;
+    //null if every point has a weight of 1
+    private int[] weights;
+    private int numCoords;
+    private int size;
+    //assignment[pointIndex] is the index of the centroid the point is assigned to, -1 if unassigned.
+    //Kept between points, so can be longer than size.
+    private int[] assignment = new int[0];
+
+    private double[][] centres;
+    private long[][] sums;
+    private long[] counts;
+    //Weighted sum of the squared lengths of the points assigned to each centre, for the inertia
+    private long[] sumSquares;
+
+    private boolean hamerlyBounds = false;
+    //upperBounds[pointIndex] >= distance to the assigned centre, lowerBounds[pointIndex] <= distance to any other
+    private double[] upperBounds;
+    private double[] lowerBounds;
+    //Half the distance from each centre to the closest other centre
+    private double[] halfCentreSeparation;
+    //How far each centre moved in the last update
+    private double[] centreMovement;
+    //Kept for seeding the centres of the next points, null until first used
+    private CentroidSeeding.Buffers seedingBuffers;
+    private int furthestMovedCentre;
+    private double maxCentreMovement;
+    private double secondMaxCentreMovement;
+    private long distanceCalculations;
+    //Largest distance a centre moved in the last update
+    private double maxCentreShift;
+    private double inertia;
+
+    //Makes an AssignmentKernel for each chunk, null to compare the points one at a time
+    private Constructor<? extends AssignmentKernel> kernelConstructor;
+
+    private int threads = 1;
+    private ForkJoinPool pool;
+    //partialSums[chunk] accumulates the points from chunkStart(chunk) to chunkStart(chunk + 1)
+    private PartialSums[] partialSums;
+
+    public PackedKMeansEngine(PackedDataPoints points) {
+        setPoints(points);
+    }
+
+    //Clusters new points from the next call to setCentres, keeping the assignment and bounds arrays if they are
+    // large enough, and the threads
+    public void setPoints(PackedDataPoints points) {
+        this.points = points;
+        this.numCoords = points.getNumCoords();
+        this.channels = new int[numCoords][];
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            channels[coordIndex] = points.getChannel(coordIndex);
+        }
+        this.weights = points.getWeights();
+        this.size = points.size();
+        if (assignment.length < size) {
+            assignment = new int[size];
+            upperBounds = null;
+            lowerBounds = null;
+        }
+    }
+
+    public void setCentres(int[][] initialCentres) {
+        double[][] centres = new double[initialCentres.length][];
+        for (int i = 0; i < initialCentres.length; i++) {
+            centres[i] = new double[initialCentres[i].length];
+            for (int coordIndex = 0; coordIndex < initialCentres[i].length; coordIndex++) {
+                centres[i][coordIndex] = initialCentres[i][coordIndex];
+            }
+        }
+        setCentres(centres);
+    }
+
+    public void setCentres(double[][] initialCentres) {
+        int k = initialCentres.length;
+        centres = new double[k][numCoords];
+        for (int i = 0; i < k; i++) {
+            if (initialCentres[i].length != numCoords) {
+                throw new IllegalArgumentException("Centre must have same number of coordinates as the data points: " +
+                        initialCentres[i].length + " != " + numCoords);
+            }
+            System.arraycopy(initialCentres[i], 0, centres[i], 0, numCoords);
+        }
+        sums = new long[k][numCoords];
+        counts = new long[k];
+        sumSquares = new long[k];
+        //A few chunks per thread, so threads that finish early can take more work
+        int numChunks = threads == 1 ? 1 : Math.min(size, threads * 4);
+        partialSums = new PartialSums[numChunks];
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            partialSums[chunk] = new PartialSums(k, numCoords, newKernel());
+        }
+        Arrays.fill(assignment, 0, size, -1);
+        if (hamerlyBounds) {
+            if (upperBounds == null) {
+                upperBounds = new double[assignment.length];
+                lowerBounds = new double[assignment.length];
+            }
+            halfCentreSeparation = new double[k];
+            centreMovement = new double[k];
+            maxCentreMovement = 0;
+            secondMaxCentreMovement = 0;
+        }
+    }
+
+    //Takes effect from the next call to setCentres
+    public void setHamerlyBounds(boolean hamerlyBounds) {
+        this.hamerlyBounds = hamerlyBounds;
+    }
+
+    public boolean isHamerlyBounds() {
+        return hamerlyBounds;
+    }
+
+    //"scalar" to compare the points one at a time, or "vector" to use the VectorAssignmentKernel.
+    //Returns false, keeping the scalar kernel, if the vector kernel isn't available.
+    //Takes effect from the next call to setCentres, and only for Lloyd's assignment, not Hamerly's.
+    public boolean setKernel(String kernel) {
+        switch (kernel) {
+            case "scalar":
+                kernelConstructor = null;
+                return true;
+            case "vector":
+                try {
+                    //Loaded by name, as it is only compiled with the jdk.incubator.vector module
+                    kernelConstructor = Class.forName("VectorAssignmentKernel")
+                            .asSubclass(AssignmentKernel.class)
+                            .getConstructor(int[][].class);
+                    //Fails here, rather than on first use, if the module wasn't added at runtime
+                    newKernel();
+                    return true;
+                } catch (ReflectiveOperationException | LinkageError | IllegalStateException e) {
+                    kernelConstructor = null;
+                    return false;
+                }
+            default:
+                throw new IllegalArgumentException("Invalid kernel. Must be \"scalar\" or \"vector\": " + kernel);
+        }
+    }
+
+    public String getKernel() {
+        return kernelConstructor == null ? "scalar" : "vector";
+    }
+
+    private AssignmentKernel newKernel() {
+        if (kernelConstructor == null) {
+            return null;
+        }
+        try {
+            return kernelConstructor.newInstance((Object) channels);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create assignment kernel: " + e.getMessage(), e);
+        }
+    }
+
+    //Takes effect from the next call to setCentres
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+        }
+        if (threads != this.threads) {
+            shutdown();
+        }
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    //Buffers for seeding the centres of the points, kept between points as the assignment and bounds are
+    public CentroidSeeding.Buffers getSeedingBuffers() {
+        if (seedingBuffers == null) {
+            seedingBuffers = new CentroidSeeding.Buffers();
+        }
+        return seedingBuffers;
+    }
+
+    //The pool of the engine's threads, started if needed, or null when running on a single thread
+    public ForkJoinPool getPool() {
+        if (threads == 1) {
+            return null;
+        }
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    //Releases the threads of the pool, if one has been started. A new pool is started if needed.
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    //Assigns every point to its closest centre and accumulates the sums for the next update.
+    //Returns the number of (unweighted) points that changed centroid.
+    public int assign() {
+        if (hamerlyBounds) {
+            updateHalfCentreSeparation();
+        }
+        if (partialSums.length == 1) {
+            assignChunk(0);
+        }
+        else {
+            getPool().invoke(new AssignChunks(0, partialSums.length));
+        }
+
+        for (int i = 0; i < centres.length; i++) {
+            Arrays.fill(sums[i], 0);
+        }
+        Arrays.fill(counts, 0);
+        Arrays.fill(sumSquares, 0);
+        int numberOfDataPointsReassigned = 0;
+        distanceCalculations = 0;
+        for (PartialSums partial : partialSums) {
+            for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+                for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                    sums[centreIndex][coordIndex] += partial.sums[centreIndex][coordIndex];
+                }
+                counts[centreIndex] += partial.counts[centreIndex];
+                sumSquares[centreIndex] += partial.sumSquares[centreIndex];
+            }
+            numberOfDataPointsReassigned += partial.numberOfDataPointsReassigned;
+            distanceCalculations += partial.distanceCalculations;
+        }
+        inertia = calculateInertia();
+        return numberOfDataPointsReassigned;
+    }
+
+    //Number of point to centre distances calculated by the last assign
+    public long getDistanceCalculations() {
+        return distanceCalculations;
+    }
+
+    //Sum of the weighted squared distances from the points to the centres they were given by the last assign
+    public double getInertia() {
+        return inertia;
+    }
+
+    private double calculateInertia() {
+        double inertia = 0;
+        //The sum over the points of |x - c|^2 is sum(|x|^2) - 2 c.sum(x) + count |c|^2
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            double[] centre = centres[centreIndex];
+            double centreInertia = sumSquares[centreIndex];
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                double coord = centre[coordIndex];
+                centreInertia += counts[centreIndex] * coord * coord - 2 * coord * sums[centreIndex][coordIndex];
+            }
+            //Rounding can leave a tiny negative value for a centre on its points
+            inertia += Math.max(0, centreInertia);
+        }
+        return inertia;
+    }
+
+    //Number of centres given no points by the last assign
+    public int getEmptyCentres() {
+        int emptyCentres = 0;
+        for (long count : counts) {
+            if (count == 0) {
+                emptyCentres++;
+            }
+        }
+        return emptyCentres;
+    }
+
+    //Number of point to centre distances the last assign did not need to calculate
+    public long getDistanceCalculationsSkipped() {
+        return (long) size * centres.length - distanceCalculations;
+    }
+
+    private int chunkStart(int chunk) {
+        return (int) ((long) size * chunk / partialSums.length);
+    }
+
+    private void assignChunk(int chunk) {
+        PartialSums partial = partialSums[chunk];
+        partial.reset();
+        int start = chunkStart(chunk);
+        int end = chunkStart(chunk + 1);
+        if (partial.kernel != null && !hamerlyBounds) {
+            int[] closest = partial.closest;
+            for (int blockStart = start; blockStart < end; blockStart += AssignmentKernel.BLOCK_SIZE) {
+                int blockEnd = Math.min(end, blockStart + AssignmentKernel.BLOCK_SIZE);
+                partial.kernel.closestCentres(blockStart, blockEnd, centres, closest);
+                for (int pointIndex = blockStart; pointIndex < blockEnd; pointIndex++) {
+                    addToPartialSums(pointIndex, closest[pointIndex - blockStart], partial);
+                }
+            }
+            partial.distanceCalculations = (long) (end - start) * centres.length;
+            return;
+        }
+        for (int pointIndex = start; pointIndex < end; pointIndex++) {
+            int closest;
+            if (hamerlyBounds) {
+                closest = getClosestCentreWithBounds(pointIndex, partial);
+            }
+            else {
+                closest = getClosestCentre(pointIndex);
+                partial.distanceCalculations += centres.length;
+            }
+            addToPartialSums(pointIndex, closest, partial);
+        }
+    }
+
+    //Assigns the point to the closest centre, adding it to the sums of the chunk
+    private void addToPartialSums(int pointIndex, int closest, PartialSums partial) {
+        if (assignment[pointIndex] != closest) {
+            partial.numberOfDataPointsReassigned++;
+            assignment[pointIndex] = closest;
+        }
+        long[] sum = partial.sums[closest];
+        int weight = weights == null ? 1 : weights[pointIndex];
+        long squaredLength = 0;
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            long coord = channels[coordIndex][pointIndex];
+            sum[coordIndex] += coord * weight;
+            squaredLength += coord * coord;
+        }
+        partial.counts[closest] += weight;
+        partial.sumSquares[closest] += squaredLength * weight;
+    }
+
+    //Ties go to the lowest centroid index, as in KMeansAlgorithm.getClosestCentroid
+    private int getClosestCentre(int pointIndex) {
+        int minCentre = 0;
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            double distance = squaredDistance(pointIndex, centres[centreIndex]);
+            if (distance < minDistance) {
+                minDistance = distance;
+                minCentre = centreIndex;
+            }
+        }
+        return minCentre;
+    }
+
+    //Same sum, in the same order, as Centroid.squaredDistance
+    private double squaredDistance(int pointIndex, double[] centre) {
+        double distance = 0;
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            double difference = channels[coordIndex][pointIndex] - centre[coordIndex];
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    private static double squaredDistance(double[] a, double[] b) {
+        double distance = 0;
+        for (int coordIndex = 0; coordIndex < a.length; coordIndex++) {
+            double difference = a[coordIndex] - b[coordIndex];
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    private void updateHalfCentreSeparation() {
+        Arrays.fill(halfCentreSeparation, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < centres.length; i++) {
+            for (int j = i + 1; j < centres.length; j++) {
+                double halfDistance = Math.sqrt(squaredDistance(centres[i], centres[j])) / 2;
+                if (halfDistance < halfCentreSeparation[i]) {
+                    halfCentreSeparation[i] = halfDistance;
+                }
+                if (halfDistance < halfCentreSeparation[j]) {
+                    halfCentreSeparation[j] = halfDistance;
+                }
+            }
+        }
+    }
+
+    //Hamerly's assignment step for one point: the bounds are moved with the centres, and the distances are only
+    // calculated if the bounds can't rule out a closer centre.
+    //A point is only kept without calculating every distance if its centre is strictly the closest, so the result is
+    // the same as getClosestCentre.
+    private int getClosestCentreWithBounds(int pointIndex, PartialSums partial) {
+        int centreIndex = assignment[pointIndex];
+        if (centreIndex == -1) {
+            partial.distanceCalculations += centres.length;
+            return getClosestCentreAndBounds(pointIndex);
+        }
+        upperBounds[pointIndex] += centreMovement[centreIndex];
+        lowerBounds[pointIndex] -= centreIndex == furthestMovedCentre ? secondMaxCentreMovement : maxCentreMovement;
+        double bound = Math.max(halfCentreSeparation[centreIndex], lowerBounds[pointIndex]);
+        if (upperBounds[pointIndex] < bound) {
+            return centreIndex;
+        }
+        upperBounds[pointIndex] = Math.sqrt(squaredDistance(pointIndex, centres[centreIndex]));
+        partial.distanceCalculations++;
+        if (upperBounds[pointIndex] < bound) {
+            return centreIndex;
+        }
+        partial.distanceCalculations += centres.length;
+        return getClosestCentreAndBounds(pointIndex);
+    }
+
+    //Calculates the distance to every centre, resetting the bounds from the closest and second closest centres.
+    //Ties go to the lowest centroid index.
+    private int getClosestCentreAndBounds(int pointIndex) {
+        int minCentre = 0;
+        double minDistance = Double.POSITIVE_INFINITY;
+        double secondMinDistance = Double.POSITIVE_INFINITY;
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            double distance = squaredDistance(pointIndex, centres[centreIndex]);
+            if (distance < minDistance) {
+                secondMinDistance = minDistance;
+                minDistance = distance;
+                minCentre = centreIndex;
+            }
+            else if (distance < secondMinDistance) {
+                secondMinDistance = distance;
+            }
+        }
+        upperBounds[pointIndex] = Math.sqrt(minDistance);
+        lowerBounds[pointIndex] = Math.sqrt(secondMinDistance);
+        return minCentre;
+    }
+
+    //Moves every non-empty centre to the weighted mean of its points, as Centroid.reassignCentre does.
+    //Returns the total absolute change of the centre coordinates.
+    public double update() {
+        double totalCoordValueChange = 0;
+        double maxSquaredMovement = 0;
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            if (counts[centreIndex] == 0) {
+                if (hamerlyBounds) {
+                    centreMovement[centreIndex] = 0;
+                }
+                continue;
+            }
+            double[] centre = centres[centreIndex];
+            double squaredMovement = 0;
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                double mean = (double) sums[centreIndex][coordIndex] / counts[centreIndex];
+                double change = mean - centre[coordIndex];
+                totalCoordValueChange += Math.abs(change);
+                squaredMovement += change * change;
+                centre[coordIndex] = mean;
+            }
+            maxSquaredMovement = Math.max(maxSquaredMovement, squaredMovement);
+            if (hamerlyBounds) {
+                centreMovement[centreIndex] = Math.sqrt(squaredMovement);
+            }
+        }
+        if (hamerlyBounds) {
+            updateMaxCentreMovement();
+        }
+        maxCentreShift = Math.sqrt(maxSquaredMovement);
+        return totalCoordValueChange;
+    }
+
+    //Largest distance any centre moved in the last update
+    public double getMaxCentreShift() {
+        return maxCentreShift;
+    }
+
+    //The lower bound of a point moves by the most any other centre moved
+    private void updateMaxCentreMovement() {
+        furthestMovedCentre = 0;
+        maxCentreMovement = 0;
+        secondMaxCentreMovement = 0;
+        for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+            double movement = centreMovement[centreIndex];
+            if (movement > maxCentreMovement) {
+                secondMaxCentreMovement = maxCentreMovement;
+                maxCentreMovement = movement;
+                furthestMovedCentre = centreIndex;
+            }
+            else if (movement > secondMaxCentreMovement) {
+                secondMaxCentreMovement = movement;
+            }
+        }
+    }
+
+    public double[][] getCentres() {
+        return centres;
+    }
+
+    //The assignments of the points are the first size()
+    public int[] getAssignment() {
+        return assignment;
+    }
+
+    public PackedDataPoints getPoints() {
+        return points;
+    }
+
+    //Splits the chunks in half until each task assigns a single chunk
+    private class AssignChunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int fromChunk;
+        private final int toChunk;
+
+        AssignChunks(int fromChunk, int toChunk) {
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                assignChunk(fromChunk);
+            }
+            else {
+                int middle = (fromChunk + toChunk) >>> 1;
+                invokeAll(new AssignChunks(fromChunk, middle), new AssignChunks(middle, toChunk));
+            }
+        }
+    }
+
+    private static class PartialSums {
+        private final long[][] sums;
+        private final long[] counts;
+        private final long[] sumSquares;
+        private int numberOfDataPointsReassigned;
+        private long distanceCalculations;
+        //null when comparing points one at a time
+        private final AssignmentKernel kernel;
+        private final int[] closest;
+
+        PartialSums(int k, int numCoords, AssignmentKernel kernel) {
+            sums = new long[k][numCoords];
+            counts = new long[k];
+            sumSquares = new long[k];
+            this.kernel = kernel;
+            closest = kernel == null ? null : new int[AssignmentKernel.BLOCK_SIZE];
+        }
+
+        void reset() {
+            for (long[] sum : sums) {
+                Arrays.fill(sum, 0);
+            }
+            Arrays.fill(counts, 0);
+            Arrays.fill(sumSquares, 0);
+            numberOfDataPointsReassigned = 0;
+            distanceCalculations = 0;
+        }
+    }
+}
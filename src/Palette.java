@@ -0,0 +1,234 @@
+import java.awt.image.IndexColorModel;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The colours of the centroids found by the k-means clustering algorithm, and a lookup table from every 24 bit
+ *  RGB colour to the index of its closest centroid.
+ * The centroids are in the colour space they were clustered in, so colours are converted to it to be compared, and
+ *  the centroids are converted back to sRGB for their colours.
+ * The table has an entry for all 2^24 colours, filled in the first time each colour is looked up, so mapping an image
+ *  costs one search of the centroids per unique colour rather than per pixel. At 32 MB, it is only worth it for
+ *  images with many pixels, so a palette can be made without one.
+ */
+public class Palette {
+    //Entries of the lookup table, one for every 24 bit colour
+    public static final int TABLE_SIZE = 1 << 24;
+    //Table entries are stored as index + 1, so a zeroed table means no colours have been looked up
+    private static final int MAX_TABLE_COLORS = Character.MAX_VALUE - 1;
+
+    private final ColourSpace colourSpace;
+    private final double[][] centres;
+    private final int[] colors;
+    private char[] table;
+    //False to search the centres for every colour looked up
+    private boolean useTable = true;
+
+    public Palette(int[][] centres) {
+        this(ColourSpace.SRGB, toDoubles(centres));
+    }
+
+    public Palette(ColourSpace colourSpace, double[][] centres) {
+        if (centres.length == 0) {
+            throw new IllegalArgumentException("Palette must have at least one colour");
+        }
+        this.colourSpace = colourSpace;
+        this.centres = new double[centres.length][];
+        this.colors = new int[centres.length];
+        for (int i = 0; i < centres.length; i++) {
+            if (centres[i].length != 3) {
+                throw new IllegalArgumentException("Palette centres must have 3 coordinates: " + centres[i].length + " given");
+            }
+            this.centres[i] = centres[i].clone();
+            colors[i] = colourSpace.toRGB(centres[i]);
+        }
+    }
+
+    //Uses the table, of TABLE_SIZE entries, as the lookup table instead of allocating one, clearing it first.
+    //For reusing one table for many palettes, each used only until the next is made, as a KMeansSession does.
+    //With a null table, colours are looked up without a table, for images with too few pixels to be worth one.
+    public Palette(ColourSpace colourSpace, double[][] centres, char[] table) {
+        this(colourSpace, centres);
+        if (table == null) {
+            useTable = false;
+            return;
+        }
+        if (table.length != TABLE_SIZE) {
+            throw new IllegalArgumentException("Lookup table must have " + TABLE_SIZE + " entries: " + table.length + " given");
+        }
+        Arrays.fill(table, (char) 0);
+        this.table = table;
+    }
+
+    //Reads a palette file of one hex RGB colour per line, e.g. "#FF8000", as written by writeFile.
+    //Blank lines are skipped. The colours are converted to centres in the colour space.
+    public static Palette readFile(String filePath, ColourSpace colourSpace) throws IOException {
+        List<double[]> centres = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filePath))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String hex = line.startsWith("#") ? line.substring(1) : line;
+                if (!hex.matches("[0-9A-Fa-f]{6}")) {
+                    throw new IOException("Invalid colour on line " + lineNumber + " of " + filePath + ": " + line);
+                }
+                int[] coords = colourSpace.toCoords(Integer.parseInt(hex, 16));
+                centres.add(new double[] {coords[0], coords[1], coords[2]});
+            }
+        }
+        if (centres.isEmpty()) {
+            throw new IOException("No colours in palette file " + filePath);
+        }
+        return new Palette(colourSpace, centres.toArray(new double[0][]));
+    }
+
+    //Writes the colours as hex RGB, one per line
+    public void writeFile(String filePath) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(filePath)))) {
+            for (int color : colors) {
+                writer.println(String.format("#%06X", color));
+            }
+            if (writer.checkError()) {
+                throw new IOException("Can't write palette file " + filePath);
+            }
+        }
+    }
+
+    private static double[][] toDoubles(int[][] centres) {
+        double[][] doubles = new double[centres.length][];
+        for (int i = 0; i < centres.length; i++) {
+            doubles[i] = new double[centres[i].length];
+            for (int coordIndex = 0; coordIndex < centres[i].length; coordIndex++) {
+                doubles[i][coordIndex] = centres[i][coordIndex];
+            }
+        }
+        return doubles;
+    }
+
+    //Allocates the lookup table if it hasn't been, which indexOf otherwise does on first use.
+    //Must be called before indexOf is called from several threads, e.g. before they are started, so they all share
+    // one table rather than each allocating their own.
+    public void prepareTable() {
+        if (table == null && useTable && centres.length <= MAX_TABLE_COLORS) {
+            table = new char[TABLE_SIZE];
+        }
+    }
+
+    //Index of the closest colour to the (A)RGB value, ignoring alpha. Ties go to the lowest index.
+    //Can be called from several threads once prepareTable has been.
+    public int indexOf(int rgbValue) {
+        int rgb = rgbValue & 0xFFFFFF;
+        if (!useTable || centres.length > MAX_TABLE_COLORS) {
+            return getClosestIndex(rgb);
+        }
+        if (table == null) {
+            prepareTable();
+        }
+        int entry = table[rgb];
+        if (entry == 0) {
+            entry = getClosestIndex(rgb) + 1;
+            //Threads filling in the same entry will write the same value
+            table[rgb] = (char) entry;
+        }
+        return entry - 1;
+    }
+
+    //Closest colour to the (A)RGB value, keeping the alpha of the value
+    public int map(int rgbValue) {
+        return (rgbValue & 0xFF000000) | colors[indexOf(rgbValue)];
+    }
+
+    //Index of the closest colour to the (A)RGB value without the lookup table, for looking up few colours
+    public int closestIndex(int rgbValue) {
+        return getClosestIndex(rgbValue & 0xFFFFFF);
+    }
+
+    //Compared as the clustering compares the data points, so colours map to the centroid they were assigned to
+    private int getClosestIndex(int rgb) {
+        long coords = colourSpace.toPackedCoords(rgb);
+        int coord0 = ColourSpace.getCoord(coords, 0);
+        int coord1 = ColourSpace.getCoord(coords, 1);
+        int coord2 = ColourSpace.getCoord(coords, 2);
+        int minIndex = 0;
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < centres.length; i++) {
+            double difference0 = coord0 - centres[i][0];
+            double difference1 = coord1 - centres[i][1];
+            double difference2 = coord2 - centres[i][2];
+            double distance = difference0 * difference0 + difference1 * difference1 + difference2 * difference2;
+            if (distance < minDistance) {
+                minDistance = distance;
+                minIndex = i;
+            }
+        }
+        return minIndex;
+    }
+
+    public int size() {
+        return colors.length;
+    }
+
+    //RGB value of the colour at the index
+    public int getColor(int index) {
+        return colors[index];
+    }
+
+    public int[] getColors() {
+        return colors.clone();
+    }
+
+    public ColourSpace getColourSpace() {
+        return colourSpace;
+    }
+
+    //Colour model of the colours, in the fewest bits per index of 1, 2, 4, or 8, for indexed images
+    public IndexColorModel toIndexColorModel() {
+        if (colors.length > 256) {
+            throw new IllegalArgumentException("Indexed images can have at most 256 colours: " + colors.length + " given");
+        }
+        int bits = getIndexBits();
+        byte[] red = new byte[colors.length];
+        byte[] green = new byte[colors.length];
+        byte[] blue = new byte[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            red[i] = (byte) (colors[i] >> 16);
+            green[i] = (byte) (colors[i] >> 8);
+            blue[i] = (byte) colors[i];
+        }
+        return new IndexColorModel(bits, colors.length, red, green, blue);
+    }
+
+    //Bits needed for an index of a colour, rounded up to 1, 2, 4, or 8 as packed rasters need
+    public int getIndexBits() {
+        int bits = 1;
+        while (1 << bits < colors.length) {
+            bits *= 2;
+        }
+        return bits;
+    }
+
+    //Centres in the colour space
+    public double[][] getCentres() {
+        double[][] copy = new double[centres.length][];
+        for (int i = 0; i < centres.length; i++) {
+            copy[i] = centres[i].clone();
+        }
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.deepToString(centres);
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the palettes found for images, so an image that has been compressed before is only recoloured.
+ * Palettes are keyed by a SHA-256 hash of the data points clustered (the pixels, or the colour histogram with the
+ *  "histogram" property), k, and the properties that change the result of the clustering.
+ * The memory tier keeps the most recently used palettes up to a total size, given in bytes by the
+ *  "palette-cache-size" property (default 16 MB). The disk tier, in the "palette-cache-dir" directory if given, keeps
+ *  every palette in a file named by its key, and is read when the memory tier misses.
+ * Only the centres are cached, not the lookup tables of the palettes. Palettes of runs stopped by the time limit or
+ *  cancelled aren't cached, as they depend on when the run was stopped.
+ */
+public class PaletteCache {
+    public static final long DEFAULT_SIZE = 16 * 1024 * 1024;
+    //Properties that change the palette found for the same data points and k
+    private static final String[] KEY_PROPERTIES = {"algorithm", "auto-k", "batch-size", "colour-space", "elbow",
+            "final-pass", "histogram", "initialization", "max-error", "max-iterations", "min-improvement",
+            "oversampling", "pyramid", "pyramid-iterations", "seed", "seeding-rounds", "time-limit", "tolerance"};
+    //"KPAL" then the format version
+    private static final int MAGIC = 0x4B50414C;
+    private static final int VERSION = 1;
+    private static final String FILE_SUFFIX = ".pal";
+
+    //Caches shared by every image compressed in this JVM with the same size and directory
+    private static final Map<String, PaletteCache> CACHES = new ConcurrentHashMap<>();
+
+    private final long maxSize;
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public PaletteCache(long maxSize, Path directory) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Palette cache size must not be negative: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.directory = directory;
+    }
+
+    //The cache given by the "palette-cache-size" and "palette-cache-dir" properties, or null if neither is set
+    public static PaletteCache fromProperties(Map<String, String> properties) {
+        if (!properties.containsKey("palette-cache-size") && !properties.containsKey("palette-cache-dir")) {
+            return null;
+        }
+        long maxSize = DEFAULT_SIZE;
+        if (properties.containsKey("palette-cache-size")) {
+            try {
+                maxSize = Long.parseLong(properties.get("palette-cache-size"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid \"palette-cache-size\" value. Must be an integer.");
+            }
+            if (maxSize < 0) {
+                throw new IllegalArgumentException("Invalid \"palette-cache-size\" value. Must not be negative.");
+            }
+        }
+        String directory = properties.get("palette-cache-dir");
+        long size = maxSize;
+        return CACHES.computeIfAbsent(maxSize + "\t" + directory,
+                cacheKey -> new PaletteCache(size, directory == null ? null : Paths.get(directory)));
+    }
+
+    //Hex SHA-256 of the data points, k, and the properties that change the palette
+    public static String key(PackedDataPoints points, int k, Map<String, String> properties) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform must support SHA-256
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.putInt(k).putInt(points.size()).putInt(points.getNumCoords());
+        for (int coordIndex = 0; coordIndex < points.getNumCoords(); coordIndex++) {
+            update(digest, buffer, points.getChannel(coordIndex), points.size());
+        }
+        if (points.isWeighted()) {
+            update(digest, buffer, points.getWeights(), points.size());
+        }
+        flush(digest, buffer);
+        for (String property : KEY_PROPERTIES) {
+            if (properties.containsKey(property)) {
+                digest.update((property + "=" + properties.get(property) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        //The palette started from changes the result, wherever its file is
+        if (properties.containsKey("initial-palette")) {
+            try {
+                digest.update(Files.readAllBytes(Paths.get(properties.get("initial-palette"))));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid \"initial-palette\" value. " + e.getMessage());
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    //Digests the first length values
+    private static void update(MessageDigest digest, ByteBuffer buffer, int[] values, int length) {
+        for (int i = 0; i < length; i++) {
+            int value = values[i];
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(digest, buffer);
+            }
+            buffer.putInt(value);
+        }
+    }
+
+    private static void flush(MessageDigest digest, ByteBuffer buffer) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+    }
+
+    //The cached palette, from memory or else disk, or null if it isn't cached
+    public synchronized Palette get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null && directory != null) {
+            entry = read(key);
+            if (entry != null) {
+                putInMemory(key, entry);
+            }
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new Palette(entry.colourSpace, entry.centres);
+    }
+
+    //Whether the palette of a run that ended for this reason can be cached: not if it was stopped early by the time
+    // limit or cancelled, when the same key could give a different palette
+    public static boolean isCacheable(TerminationReason reason) {
+        return reason != TerminationReason.TIME_LIMIT && reason != TerminationReason.CANCELLED;
+    }
+
+    public synchronized void put(String key, Palette palette) {
+        Entry entry = new Entry(palette.getColourSpace(), palette.getCentres());
+        putInMemory(key, entry);
+        if (directory != null) {
+            write(key, entry);
+        }
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.size();
+        }
+        size += entry.size();
+        //Evicts the least recently used palettes, which the map iterates over first
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            size -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    private Path getPath(String key) {
+        return directory.resolve(key + FILE_SUFFIX);
+    }
+
+    //A missing or unreadable file is a miss
+    private Entry read(String key) {
+        Path path = getPath(key);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (InputStream input = Files.newInputStream(path)) {
+            return readEntry(new DataInputStream(input));
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Ignoring unreadable palette cache file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    //Format: magic, version, colour space ordinal, number of centres, number of coordinates, then the coordinates
+    private static Entry readEntry(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a palette cache file");
+        }
+        int version = input.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown palette cache version " + version);
+        }
+        int colourSpaceIndex = input.readUnsignedByte();
+        if (colourSpaceIndex >= ColourSpace.values().length) {
+            throw new IOException("Unknown colour space " + colourSpaceIndex);
+        }
+        int k = input.readInt();
+        int numCoords = input.readInt();
+        if (k < 1 || numCoords != 3) {
+            throw new IOException("Invalid palette of " + k + " centres of " + numCoords + " coordinates");
+        }
+        double[][] centres = new double[k][numCoords];
+        for (double[] centre : centres) {
+            for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                centre[coordIndex] = input.readDouble();
+            }
+        }
+        if (input.read() != -1) {
+            throw new IOException("Palette cache file is longer than its palette");
+        }
+        return new Entry(ColourSpace.values()[colourSpaceIndex], centres);
+    }
+
+    //Written to a temporary file then moved, so other processes never read a partly written palette.
+    //The palette is still cached in memory if it can't be written.
+    private void write(String key, Entry entry) {
+        Path path = getPath(key);
+        Path temporaryPath = null;
+        try {
+            Files.createDirectories(directory);
+            temporaryPath = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream output = Files.newOutputStream(temporaryPath)) {
+                DataOutputStream dataOutput = new DataOutputStream(output);
+                dataOutput.writeInt(MAGIC);
+                dataOutput.writeByte(VERSION);
+                dataOutput.writeByte(entry.colourSpace.ordinal());
+                dataOutput.writeInt(entry.centres.length);
+                dataOutput.writeInt(entry.centres[0].length);
+                for (double[] centre : entry.centres) {
+                    for (double coord : centre) {
+                        dataOutput.writeDouble(coord);
+                    }
+                }
+                dataOutput.flush();
+            }
+            try {
+                Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println("Can't write palette cache file " + path + ": " + e.getMessage());
+            if (temporaryPath != null) {
+                try {
+                    Files.deleteIfExists(temporaryPath);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    //Total size in bytes of the palettes in memory
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private static class Entry {
+        private final ColourSpace colourSpace;
+        private final double[][] centres;
+
+        Entry(ColourSpace colourSpace, double[][] centres) {
+            this.colourSpace = colourSpace;
+            this.centres = centres;
+        }
+
+        //Approximate bytes of memory used
+        long size() {
+            return 64 + centres.length * (16 + 8L * centres[0].length);
+        }
+    }
+}
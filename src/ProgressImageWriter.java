@@ -0,0 +1,348 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * KMeansListener that outputs a progress image every Nth iteration: a downscaled copy of the image, recoloured with
+ *  the centres the data points were assigned to. The final iteration is always output.
+ * Frames are rendered and encoded on a background thread, with a bounded queue of frames waiting, so the clustering
+ *  only waits for the writer when the queue is full. The source image is never modified.
+ * Frames are indexed images of the palette, written as PNG files to a directory, or all to one animated GIF.
+ */
+public class ProgressImageWriter implements KMeansListener, Closeable {
+    public static final String DEFAULT_DIRECTORY = "progress-images";
+    public static final int DEFAULT_EVERY = 1;
+    public static final int DEFAULT_PREVIEW_SIZE = 512;
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+    //Hundredths of a second each frame of an animated GIF is shown for
+    public static final int GIF_FRAME_DELAY = 25;
+    //Quality 1 is no compression, and 0 the slowest compression
+    private static final float PNG_COMPRESSION_QUALITY = 0.8f;
+
+    //Put on the queue by close, to stop the writer thread
+    private static final Frame END = new Frame(0, null);
+
+    private final int width;
+    private final int height;
+    //Unique colours of the preview, and the index in them of every pixel's colour, so a frame looks up each colour once
+    private final int[] uniqueColors;
+    private final int[] pixelColors;
+    private final int every;
+    //null when writing an animated GIF
+    private final String directory;
+    private ImageWriter gifWriter;
+    private ImageOutputStream gifOutput;
+
+    private final BlockingQueue<Frame> queue;
+    private final Thread writerThread;
+    //First error of the writer thread, thrown by close
+    private volatile IOException error;
+    private int framesWritten;
+
+    //The last palette, output when the run completes if its iteration was skipped
+    private Frame lastFrame;
+    private boolean lastFrameQueued;
+
+    //Frames are written to directory, or to gifPath if it isn't null
+    public ProgressImageWriter(BufferedImage image, String directory, String gifPath, int every, int previewSize,
+                               int queueDepth) throws IOException {
+        if (every < 1 || previewSize < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException("Frame interval, preview size and queue depth must be at least 1");
+        }
+        this.every = every;
+        double scale = Math.min(1, (double) previewSize / Math.max(image.getWidth(), image.getHeight()));
+        width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage preview = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = preview.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+
+        int[] rgbData = preview.getRGB(0, 0, width, height, null, 0, width);
+        int[] sorted = rgbData.clone();
+        Arrays.sort(sorted);
+        int numColors = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[numColors++] = sorted[i];
+            }
+        }
+        uniqueColors = Arrays.copyOf(sorted, numColors);
+        pixelColors = new int[rgbData.length];
+        for (int i = 0; i < rgbData.length; i++) {
+            pixelColors[i] = Arrays.binarySearch(uniqueColors, rgbData[i]);
+        }
+
+        if (gifPath == null) {
+            this.directory = directory;
+            Files.createDirectories(Paths.get(directory));
+        }
+        else {
+            this.directory = null;
+            openGif(gifPath);
+        }
+        queue = new ArrayBlockingQueue<>(queueDepth);
+        writerThread = new Thread(this::writeFrames, "progress-image-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    //From the "intermediate-directory", "intermediate-gif", "intermediate-every", "intermediate-size", and
+    // "intermediate-queue" properties
+    public static ProgressImageWriter fromProperties(BufferedImage image, Map<String, String> properties) {
+        String directory = properties.getOrDefault("intermediate-directory", DEFAULT_DIRECTORY);
+        String gifPath = properties.get("intermediate-gif");
+        int every = getPositiveInt(properties, "intermediate-every", DEFAULT_EVERY);
+        int previewSize = getPositiveInt(properties, "intermediate-size", DEFAULT_PREVIEW_SIZE);
+        int queueDepth = getPositiveInt(properties, "intermediate-queue", DEFAULT_QUEUE_DEPTH);
+        try {
+            return new ProgressImageWriter(image, directory, gifPath, every, previewSize, queueDepth);
+        } catch (IOException e) {
+            String key = gifPath == null ? "intermediate-directory" : "intermediate-gif";
+            throw new IllegalArgumentException("Invalid \"" + key + "\" value. Can't write to " +
+                    (gifPath == null ? directory : gifPath) + ": " + e.getMessage());
+        }
+    }
+
+    private static int getPositiveInt(Map<String, String> properties, String key, int defaultValue) {
+        if (!properties.containsKey(key)) {
+            return defaultValue;
+        }
+        int value;
+        try {
+            value = Integer.parseInt(properties.get(key));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid \"" + key + "\" value. Must be an integer.");
+        }
+        if (value < 1) {
+            throw new IllegalArgumentException("Invalid \"" + key + "\" value. Must be at least 1.");
+        }
+        return value;
+    }
+
+    @Override
+    public void iterationCompleted(IterationMetrics metrics) {
+    }
+
+    @Override
+    public void centresAssigned(int iteration, Palette palette) {
+        lastFrame = new Frame(iteration, palette);
+        lastFrameQueued = iteration % every == 0;
+        if (lastFrameQueued) {
+            enqueue(lastFrame);
+        }
+    }
+
+    @Override
+    public void runCompleted(TerminationReason reason, int iterations) {
+        if (lastFrame != null && !lastFrameQueued) {
+            enqueue(lastFrame);
+            lastFrameQueued = true;
+        }
+    }
+
+    //Waits for space on the queue, so at most the queue depth of frames are held
+    private void enqueue(Frame frame) {
+        try {
+            queue.put(frame);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFrames() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == END) {
+                return;
+            }
+            //After an error the frames are still taken, so the clustering isn't held up, but not written
+            if (error != null) {
+                continue;
+            }
+            try {
+                writeFrame(frame);
+            } catch (IOException | RuntimeException e) {
+                error = e instanceof IOException ? (IOException) e
+                        : new IOException("Can't write progress image " + frame.iteration + ": " + e, e);
+            }
+        }
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+        BufferedImage image = render(frame.palette);
+        if (directory == null) {
+            writeGifFrame(image);
+        }
+        else {
+            writePng(image, new File(directory, "iteration-" + frame.iteration + ".png"));
+        }
+        framesWritten++;
+    }
+
+    //With a fast compression level, as the default spends about 10x longer for files only 10% smaller
+    private static void writePng(BufferedImage image, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for format png");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(PNG_COMPRESSION_QUALITY);
+        //The output stream writes over an existing file without truncating it
+        file.delete();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+            if (output == null) {
+                throw new IOException("Can't write " + file);
+            }
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    //The preview as an indexed image of the palette, or an RGB image for palettes of more than 256 colours
+    private BufferedImage render(Palette palette) {
+        int[] colorIndices = new int[uniqueColors.length];
+        for (int i = 0; i < uniqueColors.length; i++) {
+            colorIndices[i] = palette.closestIndex(uniqueColors[i]);
+        }
+        int[] pixels = new int[pixelColors.length];
+        if (palette.size() > 256) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = palette.getColor(colorIndices[pixelColors[i]]);
+            }
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, width, height, pixels, 0, width);
+            return image;
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = colorIndices[pixelColors[i]];
+        }
+        BufferedImage image = palette.getIndexBits() == 8 ?
+                new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette.toIndexColorModel())
+                : new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, palette.toIndexColorModel());
+        image.getRaster().setSamples(0, 0, width, height, 0, pixels);
+        return image;
+    }
+
+    private void openGif(String gifPath) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for format gif");
+        }
+        File gifFile = new File(gifPath);
+        //The output stream writes over an existing file without truncating it
+        gifFile.delete();
+        gifOutput = ImageIO.createImageOutputStream(gifFile);
+        if (gifOutput == null) {
+            throw new IOException("Can't write " + gifPath);
+        }
+        gifWriter = writers.next();
+        gifWriter.setOutput(gifOutput);
+        gifWriter.prepareWriteSequence(null);
+    }
+
+    //Each frame has its own colour table, the first also makes the GIF loop
+    private void writeGifFrame(BufferedImage image) throws IOException {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            throw new IOException("GIF frames can have at most 256 colours");
+        }
+        ImageWriteParam param = gifWriter.getDefaultWriteParam();
+        IIOMetadata metadata = gifWriter.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        String formatName = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+
+        IIOMetadataNode graphicControl = getChild(root, "GraphicControlExtension");
+        graphicControl.setAttribute("disposalMethod", "none");
+        graphicControl.setAttribute("userInputFlag", "FALSE");
+        graphicControl.setAttribute("transparentColorFlag", "FALSE");
+        graphicControl.setAttribute("delayTime", Integer.toString(GIF_FRAME_DELAY));
+        graphicControl.setAttribute("transparentColorIndex", "0");
+        if (framesWritten == 0) {
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            //Sub-block 1, loop count 0 (forever)
+            loop.setUserObject(new byte[] {1, 0, 0});
+            getChild(root, "ApplicationExtensions").appendChild(loop);
+        }
+        metadata.setFromTree(formatName, root);
+        gifWriter.writeToSequence(new IIOImage(image, null, metadata), param);
+    }
+
+    private static IIOMetadataNode getChild(IIOMetadataNode node, String name) {
+        for (int i = 0; i < node.getLength(); i++) {
+            if (node.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) node.item(i);
+            }
+        }
+        IIOMetadataNode child = new IIOMetadataNode(name);
+        node.appendChild(child);
+        return child;
+    }
+
+    //Waits for the queued frames to be written, throwing the first error of the writer thread
+    @Override
+    public void close() throws IOException {
+        enqueue(END);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (gifWriter != null) {
+            try {
+                if (error == null && framesWritten > 0) {
+                    gifWriter.endWriteSequence();
+                }
+            } finally {
+                gifWriter.dispose();
+                gifOutput.close();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public int getFramesWritten() {
+        return framesWritten;
+    }
+
+    private static class Frame {
+        private final int iteration;
+        private final Palette palette;
+
+        Frame(int iteration, Palette palette) {
+            this.iteration = iteration;
+            this.palette = palette;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coarse to fine clustering of an image, with the "pyramid" property.
+ * The image is halved in size "pyramid" - 1 times, and the smallest copy is clustered to convergence as usual. Each
+ *  larger level, and then the full image, starts from the centres found on the level below and runs at most
+ *  "pyramid-iterations" iterations (default 5), as the palette of a photo is mostly found by a small copy.
+ * Levels stop being halved before they have fewer than MIN_LEVEL_PIXELS pixels.
+ */
+public class PyramidClustering {
+    public static final int DEFAULT_REFINEMENT_ITERATIONS = 5;
+    public static final int MIN_LEVEL_PIXELS = 4096;
+
+    //Levels given by the "pyramid" property, counting the full image, or 1 if not set
+    public static int getLevels(Map<String, String> properties) {
+        if (!properties.containsKey("pyramid")) {
+            return 1;
+        }
+        int levels;
+        try {
+            levels = Integer.parseInt(properties.get("pyramid"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid \"pyramid\" value. Must be an integer.");
+        }
+        if (levels < 1) {
+            throw new IllegalArgumentException("Invalid \"pyramid\" value. Must be at least 1.");
+        }
+        //Each level would choose its own k
+        if (levels > 1 && properties.containsKey("auto-k") && properties.get("auto-k").equals("true")) {
+            throw new IllegalArgumentException("\"pyramid\" can't be used with \"auto-k\".");
+        }
+        return levels;
+    }
+
+    //Copies of the image at the levels below full resolution, from the smallest, each half the size of the next.
+    //Empty if the image is too small to be halved, or levels is 1.
+    public static List<BufferedImage> downsample(BufferedImage image, int levels, int k) {
+        List<BufferedImage> images = new ArrayList<>();
+        BufferedImage level = image;
+        for (int i = 1; i < levels; i++) {
+            int width = (level.getWidth() + 1) / 2;
+            int height = (level.getHeight() + 1) / 2;
+            if ((long) width * height < Math.max(MIN_LEVEL_PIXELS, k)) {
+                break;
+            }
+            BufferedImage halved = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = halved.createGraphics();
+            //Sampled half way between pixels, so each pixel is the mean of 2x2 pixels of the level above
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(level, 0, 0, width, height, null);
+            graphics.dispose();
+            images.add(halved);
+            level = halved;
+        }
+        Collections.reverse(images);
+        return images;
+    }
+
+    //Properties of the levels refined from the centres of the level below: started from a palette, with at most
+    // "pyramid-iterations" iterations
+    public static Map<String, String> refinementProperties(Map<String, String> properties) {
+        int refinementIterations = DEFAULT_REFINEMENT_ITERATIONS;
+        if (properties.containsKey("pyramid-iterations")) {
+            try {
+                refinementIterations = Integer.parseInt(properties.get("pyramid-iterations"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid \"pyramid-iterations\" value. Must be an integer.");
+            }
+            if (refinementIterations < 1) {
+                throw new IllegalArgumentException("Invalid \"pyramid-iterations\" value. Must be at least 1.");
+            }
+        }
+        Map<String, String> refinement = new HashMap<>(properties);
+        refinement.remove("initial-palette");
+        refinement.put("initialization", "palette");
+        //An invalid "max-iterations" is left for the KMeansAlgorithm of the smallest level to reject
+        if (properties.containsKey("max-iterations") && properties.get("max-iterations").matches("[0-9]+")) {
+            refinementIterations = Math.min(refinementIterations, Integer.parseInt(properties.get("max-iterations")));
+        }
+        refinement.put("max-iterations", Integer.toString(refinementIterations));
+        return refinement;
+    }
+
+    //Clusters the smallest level as usual, then refines its centres on each larger level.
+    //Returns the palette of the largest level, to start the full image from. The listener, if not null, is told the
+    // iterations of every level.
+    public static Palette clusterLevels(List<BufferedImage> levels, int k, Map<String, String> properties,
+                                        KMeansListener listener) {
+        boolean verbose = properties.containsKey("verbose") && properties.get("verbose").equals("true");
+        Map<String, String> refinement = refinementProperties(properties);
+        Palette palette = null;
+        for (BufferedImage level : levels) {
+            if (verbose) {
+                System.out.println("Pyramid level: " + level.getWidth() + "x" + level.getHeight());
+            }
+            PackedDataPoints packedDataPoints = ImageManipulation.getPackedDataPoints(level, properties);
+            KMeansAlgorithm kMeansAlgorithm = new KMeansAlgorithm(packedDataPoints, palette == null ? properties : refinement);
+            if (palette != null) {
+                kMeansAlgorithm.setInitialPalette(palette);
+            }
+            if (listener != null) {
+                kMeansAlgorithm.addListener(listener);
+            }
+            kMeansAlgorithm.kmeans(k);
+            palette = kMeansAlgorithm.getPalette();
+        }
+        if (verbose) {
+            System.out.println("Full resolution");
+        }
+        return palette;
+    }
+}
@@ -0,0 +1,300 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads and writes raw pixel files through memory-mapped buffers, for pipelines that have already decoded their images.
+ * A raw pixel file has a 16 byte header: "RAWP", then the width, height, and channels (3 for RGB or 4 for RGBA) as
+ *  big-endian ints. The pixels follow row by row, one byte per channel.
+ * An indexed raw file has the header "RAWI", the width, height, and number of colours (at most 256), then the RGB
+ *  bytes of each colour, then one byte per pixel, row by row, of the index of its colour.
+ * The data points are packed for the clustering straight from the mapped input, and the output is written straight
+ *  into a mapped file, so the image is never decoded, encoded, or held as a BufferedImage.
+ */
+public class RawPixelIO {
+    public static final String FILE_EXTENSION = "raw";
+    //"RAWP" and "RAWI"
+    public static final int PIXELS_MAGIC = 0x52415750;
+    public static final int INDEXED_MAGIC = 0x52415749;
+    private static final int HEADER_BYTES = 16;
+
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final MappedByteBuffer buffer;
+
+    private RawPixelIO(int width, int height, int channels, MappedByteBuffer buffer) {
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.buffer = buffer;
+    }
+
+    //Whether the path has the raw file extension
+    public static boolean isRawFile(String filePath) {
+        return filePath.toLowerCase(Locale.ROOT).endsWith("." + FILE_EXTENSION);
+    }
+
+    //Maps a raw pixel file, checking its header and size
+    public static RawPixelIO open(String filePath) throws IOException {
+        Path path = Paths.get(filePath);
+        if (!Files.isRegularFile(path)) {
+            throw new FileNotFoundException(filePath);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Not a raw pixel file: " + filePath);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Raw pixel file is too large to map: " + filePath);
+            }
+            //The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != PIXELS_MAGIC) {
+                throw new IOException("Not a raw pixel file: " + filePath);
+            }
+            int width = buffer.getInt(4);
+            int height = buffer.getInt(8);
+            int channels = buffer.getInt(12);
+            if (width < 1 || height < 1 || (channels != 3 && channels != 4)) {
+                throw new IOException("Invalid raw pixel file header: " + width + "x" + height + ", " + channels +
+                        " channels in " + filePath);
+            }
+            if ((long) width * height * channels != size - HEADER_BYTES) {
+                throw new IOException("Raw pixel file is " + size + " bytes, but a " + width + "x" + height + "x" +
+                        channels + " image needs " + (HEADER_BYTES + (long) width * height * channels) + ": " + filePath);
+            }
+            return new RawPixelIO(width, height, channels, buffer);
+        }
+    }
+
+    //Clusters the colours of a raw pixel file and writes the recoloured image, as ImageManipulation does for an image.
+    //Output paths with the raw extension are written through a mapped buffer, others by ImageIO.
+    public static void compressImageToKColors(String inputPath, String outputPath, int k, Map<String, String> properties)
+            throws IOException {
+        if (properties.containsKey("intermediate-images") && properties.get("intermediate-images").equals("true")) {
+            throw new IllegalArgumentException("\"intermediate-images\" can't be used with raw pixel input.");
+        }
+        if (!properties.getOrDefault("engine", "packed").equals("packed")) {
+            throw new IllegalArgumentException("Raw pixel input requires the \"packed\" engine.");
+        }
+        ImageManipulation.checkIndexed(k, properties);
+        if (Dithering.fromProperties(properties) != null) {
+            throw new IllegalArgumentException("\"dither\" can't be used with raw pixel input.");
+        }
+        if (PyramidClustering.getLevels(properties) > 1) {
+            throw new IllegalArgumentException("\"pyramid\" can't be used with raw pixel input.");
+        }
+        RawPixelIO input = open(inputPath);
+        PackedDataPoints packedDataPoints = properties.containsKey("histogram") ?
+                input.toHistogram(ImageManipulation.getHistogramBits(properties))
+                : input.toPackedDataPoints();
+        ColourSpace.fromProperties(properties).convertFromRGB(packedDataPoints);
+
+        PaletteCache paletteCache = PaletteCache.fromProperties(properties);
+        String paletteCacheKey = null;
+        if (paletteCache != null) {
+            paletteCacheKey = PaletteCache.key(packedDataPoints, k, properties);
+            Palette palette = paletteCache.get(paletteCacheKey);
+            if (palette != null) {
+                ImageManipulation.exportPalette(palette, properties);
+                input.writeRecoloured(outputPath, palette, ImageManipulation.isIndexed(properties));
+                return;
+            }
+        }
+
+        KMeansAlgorithm kMeansAlgorithm = new KMeansAlgorithm(packedDataPoints, properties);
+        JsonLinesMetricsSink metricsSink = ImageManipulation.addMetricsSink(kMeansAlgorithm, properties);
+        try {
+            kMeansAlgorithm.kmeans(k);
+            Palette palette = kMeansAlgorithm.getPalette();
+            if (paletteCache != null) {
+                paletteCache.put(paletteCacheKey, palette);
+            }
+            ImageManipulation.exportPalette(palette, properties);
+            long start = System.nanoTime();
+            input.writeRecoloured(outputPath, palette, ImageManipulation.isIndexed(properties));
+            //Includes writing the output, as it is recoloured straight into the output file
+            kMeansAlgorithm.imageRecoloured(System.nanoTime() - start);
+        } finally {
+            ImageManipulation.closeMetricsSink(metricsSink);
+        }
+    }
+
+    //Packs every pixel in the same (column major) order as PackedDataPoints.fromRGB, reading the mapped rows in order
+    public PackedDataPoints toPackedDataPoints() {
+        int[] red = new int[width * height];
+        int[] green = new int[width * height];
+        int[] blue = new int[width * height];
+        int offset = HEADER_BYTES;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = x * height + y;
+                red[i] = buffer.get(offset) & 0xFF;
+                green[i] = buffer.get(offset + 1) & 0xFF;
+                blue[i] = buffer.get(offset + 2) & 0xFF;
+                offset += channels;
+            }
+        }
+        return new PackedDataPoints(new int[][] {red, green, blue});
+    }
+
+    //Packs the unique colours, quantised to bitsPerChannel, weighted by their number of pixels.
+    //Only the histogram is allocated, so memory use doesn't depend on the image size.
+    public PackedDataPoints toHistogram(int bitsPerChannel) {
+        int[] counts = PackedDataPoints.newHistogram(bitsPerChannel);
+        int end = HEADER_BYTES + width * height * channels;
+        for (int offset = HEADER_BYTES; offset < end; offset += channels) {
+            counts[PackedDataPoints.histogramIndex(getRGB(offset), bitsPerChannel)]++;
+        }
+        return PackedDataPoints.fromHistogram(counts, bitsPerChannel);
+    }
+
+    private int getRGB(int offset) {
+        return ((buffer.get(offset) & 0xFF) << 16) | ((buffer.get(offset + 1) & 0xFF) << 8) | (buffer.get(offset + 2) & 0xFF);
+    }
+
+    //Writes every pixel mapped to its closest palette colour, to a raw pixel file with the same channels, or an
+    // indexed raw file if indexed, or an image file of any other format
+    public void writeRecoloured(String outputPath, Palette palette, boolean indexed) throws IOException {
+        if (!isRawFile(outputPath)) {
+            BufferedImage image = toBufferedImage();
+            image = indexed ? ImageManipulation.toIndexedImage(image, palette) : ImageManipulation.modifyImageColors(image, palette);
+            FilePathsAndImageIO.writeImage(image, outputPath);
+            return;
+        }
+        int pixels = width * height;
+        if (indexed) {
+            MappedByteBuffer output = mapOutput(outputPath, HEADER_BYTES + 3L * palette.size() + pixels);
+            writeIndexedHeader(output, width, height, palette.getColors());
+            int indexOffset = HEADER_BYTES + 3 * palette.size();
+            for (int i = 0; i < pixels; i++) {
+                output.put(indexOffset + i, (byte) palette.indexOf(getRGB(HEADER_BYTES + i * channels)));
+            }
+            output.force();
+            return;
+        }
+        MappedByteBuffer output = mapOutput(outputPath, HEADER_BYTES + (long) pixels * channels);
+        writePixelsHeader(output, width, height, channels);
+        int end = HEADER_BYTES + pixels * channels;
+        for (int offset = HEADER_BYTES; offset < end; offset += channels) {
+            int color = palette.getColor(palette.indexOf(getRGB(offset)));
+            output.put(offset, (byte) (color >> 16));
+            output.put(offset + 1, (byte) (color >> 8));
+            output.put(offset + 2, (byte) color);
+            if (channels == 4) {
+                output.put(offset + 3, buffer.get(offset + 3));
+            }
+        }
+        output.force();
+    }
+
+    //Copies the pixels to an (A)RGB image, for the formats ImageIO writes
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(width, height,
+                channels == 4 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            int offset = HEADER_BYTES + i * channels;
+            int alpha = channels == 4 ? buffer.get(offset + 3) & 0xFF : 0xFF;
+            pixels[i] = (alpha << 24) | getRGB(offset);
+        }
+        return image;
+    }
+
+    //Writes an image as a raw file: indexed if it has an IndexColorModel of at most 256 colours, otherwise RGB, or
+    // RGBA if it has alpha
+    public static void write(BufferedImage image, String filePath) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getColorModel() instanceof IndexColorModel && ((IndexColorModel) image.getColorModel()).getMapSize() <= 256) {
+            IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+            int[] colors = new int[colorModel.getMapSize()];
+            colorModel.getRGBs(colors);
+            MappedByteBuffer output = mapOutput(filePath, HEADER_BYTES + 3L * colors.length + (long) width * height);
+            writeIndexedHeader(output, width, height, colors);
+            Raster raster = image.getRaster();
+            int[] row = new int[width];
+            int offset = HEADER_BYTES + 3 * colors.length;
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, row);
+                for (int x = 0; x < width; x++) {
+                    output.put(offset++, (byte) row[x]);
+                }
+            }
+            output.force();
+            return;
+        }
+        int channels = image.getColorModel().hasAlpha() ? 4 : 3;
+        MappedByteBuffer output = mapOutput(filePath, HEADER_BYTES + (long) width * height * channels);
+        writePixelsHeader(output, width, height, channels);
+        int[] row = new int[width];
+        int offset = HEADER_BYTES;
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                output.put(offset, (byte) (row[x] >> 16));
+                output.put(offset + 1, (byte) (row[x] >> 8));
+                output.put(offset + 2, (byte) row[x]);
+                if (channels == 4) {
+                    output.put(offset + 3, (byte) (row[x] >>> 24));
+                }
+                offset += channels;
+            }
+        }
+        output.force();
+    }
+
+    private static MappedByteBuffer mapOutput(String filePath, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Raw pixel file is too large to map: " + filePath);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void writePixelsHeader(MappedByteBuffer output, int width, int height, int channels) {
+        output.putInt(0, PIXELS_MAGIC);
+        output.putInt(4, width);
+        output.putInt(8, height);
+        output.putInt(12, channels);
+    }
+
+    private static void writeIndexedHeader(MappedByteBuffer output, int width, int height, int[] colors) {
+        output.putInt(0, INDEXED_MAGIC);
+        output.putInt(4, width);
+        output.putInt(8, height);
+        output.putInt(12, colors.length);
+        for (int i = 0; i < colors.length; i++) {
+            output.put(HEADER_BYTES + 3 * i, (byte) (colors[i] >> 16));
+            output.put(HEADER_BYTES + 3 * i + 1, (byte) (colors[i] >> 8));
+            output.put(HEADER_BYTES + 3 * i + 2, (byte) colors[i]);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+}
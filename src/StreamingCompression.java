@@ -0,0 +1,361 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Compresses an image without ever holding all of it in memory.
+ * The image is read in strips of rows through an ImageReader source region, first to build a colour histogram,
+ *  which is clustered, then again to recolour each strip as the ImageWriter asks for its rows.
+ * Memory use depends on the strip height and the histogram bits. The PNG and TIFF writers ask for the rows in
+ *  order, so PNG is the default output format. The JPEG writer copies the whole image first, so JPEG output is
+ *  rejected.
+ * Formats that can't be decoded from the middle, like JPEG and PNG, are decoded from the start for every strip, so
+ *  the default strip height grows with the image, to at most MAX_DEFAULT_STRIPS strips. That keeps the decoding
+ *  linear in the image height, at the cost of strips of up to 1/MAX_DEFAULT_STRIPS of the image.
+ */
+public class StreamingCompression {
+    public static final String DEFAULT_FILE_FORMAT = "png";
+    //Smallest default strip height
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+    //Most strips by default, each decoding the image from the start up to its last row
+    public static final int MAX_DEFAULT_STRIPS = 16;
+
+    public static void compressImageToKColors(String inputPath, String outputPath, int k, Map<String, String> properties)
+            throws IOException {
+        //0 for the default, which depends on the image height
+        int stripHeight = 0;
+        if (properties.containsKey("strip-height")) {
+            try {
+                stripHeight = Integer.parseInt(properties.get("strip-height"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid \"strip-height\" value. Must be an integer.");
+            }
+            if (stripHeight < 1) {
+                throw new IllegalArgumentException("Invalid \"strip-height\" value. Must be at least 1.");
+            }
+        }
+        int bitsPerChannel = properties.containsKey("histogram") ? ImageManipulation.getHistogramBits(properties) : 8;
+        ImageManipulation.checkIndexed(k, properties);
+        //Errors would have to be carried between strips, which are recoloured in any order
+        if (Dithering.fromProperties(properties) != null) {
+            throw new IllegalArgumentException("\"dither\" can't be used with \"streaming\".");
+        }
+        if (PyramidClustering.getLevels(properties) > 1) {
+            throw new IllegalArgumentException("\"pyramid\" can't be used with \"streaming\".");
+        }
+        boolean indexed = ImageManipulation.isIndexed(properties);
+        String formatName = getFormatName(outputPath, indexed);
+        if (formatName.equalsIgnoreCase("jpg") || formatName.equalsIgnoreCase("jpeg")) {
+            throw new IllegalArgumentException("\"streaming\" can't write a JPEG, as the JPEG writer holds the whole " +
+                    "image in memory. Use a .png or .tif output path.");
+        }
+
+        File inputFile = new File(inputPath);
+        if (!inputFile.isFile()) {
+            throw new FileNotFoundException(inputPath);
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(inputFile)) {
+            ImageReader reader = getReader(input, inputPath);
+            try {
+                reader.setInput(input);
+                int[] counts = PackedDataPoints.newHistogram(bitsPerChannel);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (stripHeight == 0) {
+                    stripHeight = Math.max(DEFAULT_STRIP_HEIGHT, (height + MAX_DEFAULT_STRIPS - 1) / MAX_DEFAULT_STRIPS);
+                }
+                int[] rgbData = new int[width * Math.min(stripHeight, height)];
+                for (int stripY = 0; stripY < height; stripY += stripHeight) {
+                    int rows = Math.min(stripHeight, height - stripY);
+                    readStrip(reader, width, stripY, rows, rgbData);
+                    PackedDataPoints.addToHistogram(counts, rgbData, width * rows, bitsPerChannel);
+                }
+
+                PackedDataPoints packedDataPoints = PackedDataPoints.fromHistogram(counts, bitsPerChannel);
+                ColourSpace.fromProperties(properties).convertFromRGB(packedDataPoints);
+
+                PaletteCache paletteCache = PaletteCache.fromProperties(properties);
+                String paletteCacheKey = null;
+                if (paletteCache != null) {
+                    paletteCacheKey = PaletteCache.key(packedDataPoints, k, properties);
+                    Palette palette = paletteCache.get(paletteCacheKey);
+                    if (palette != null) {
+                        ImageManipulation.exportPalette(palette, properties);
+                        writeImage(new RecolouredStrips(reader, width, height, stripHeight, palette, indexed), outputPath);
+                        return;
+                    }
+                }
+
+                KMeansAlgorithm kMeansAlgorithm = new KMeansAlgorithm(packedDataPoints, properties);
+                JsonLinesMetricsSink metricsSink = ImageManipulation.addMetricsSink(kMeansAlgorithm, properties);
+                try {
+                    kMeansAlgorithm.kmeans(k);
+                    Palette palette = kMeansAlgorithm.getPalette();
+                    if (paletteCache != null) {
+                        paletteCache.put(paletteCacheKey, palette);
+                    }
+                    ImageManipulation.exportPalette(palette, properties);
+
+                    long start = System.nanoTime();
+                    writeImage(new RecolouredStrips(reader, width, height, stripHeight, palette, indexed), outputPath);
+                    //Recolouring is done as the image is written, so this includes the decoding and encoding
+                    kMeansAlgorithm.imageRecoloured(System.nanoTime() - start);
+                } finally {
+                    ImageManipulation.closeMetricsSink(metricsSink);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader getReader(ImageInputStream input, String inputPath) throws IOException {
+        if (input == null) {
+            throw new IOException("Can't read " + inputPath);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("No image reader for " + inputPath);
+        }
+        return readers.next();
+    }
+
+    //Reads the RGB values of the rows from stripY into rgbData
+    private static void readStrip(ImageReader reader, int width, int stripY, int rows, int[] rgbData) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, stripY, width, rows));
+        BufferedImage strip = reader.read(0, param);
+        strip.getRGB(0, 0, width, rows, rgbData, 0, width);
+    }
+
+    //Format of the output path's extension, or the default format if it has none
+    private static String getFormatName(String filePath, boolean indexed) {
+        int i = filePath.lastIndexOf('.');
+        if (i == -1) {
+            return indexed ? CompressImage.DEFAULT_INDEXED_FILE_FORMAT : DEFAULT_FILE_FORMAT;
+        }
+        return filePath.substring(i + 1);
+    }
+
+    private static void writeImage(RenderedImage image, String filePath) throws IOException {
+        String formatName = getFormatName(filePath, image.getColorModel() instanceof IndexColorModel);
+        if (filePath.lastIndexOf('.') == -1) {
+            filePath += "." + formatName;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for format " + formatName);
+        }
+        ImageWriter writer = writers.next();
+        File imageFile = new File(filePath);
+        //The output stream writes over an existing file without truncating it
+        imageFile.delete();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(imageFile)) {
+            writer.setOutput(output);
+            writer.write(image);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * An RGB image made of strips of rows, each read from the source image and recoloured when first asked for.
+     * Indexed, the strips hold the index of each pixel's palette colour instead, with the palette as the colour model.
+     * Only the most recent strip is kept.
+     */
+    private static class RecolouredStrips implements RenderedImage {
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private final int stripHeight;
+        private final Palette palette;
+        private final boolean indexed;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+
+        private int currentStrip = -1;
+        private WritableRaster currentRaster;
+        private final int[] rgbData;
+
+        RecolouredStrips(ImageReader reader, int width, int height, int stripHeight, Palette palette, boolean indexed) {
+            this.reader = reader;
+            this.width = width;
+            this.height = height;
+            this.stripHeight = Math.min(stripHeight, height);
+            this.palette = palette;
+            this.indexed = indexed;
+            this.colorModel = indexed ? palette.toIndexColorModel() : new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+            this.sampleModel = colorModel.createCompatibleSampleModel(width, this.stripHeight);
+            this.rgbData = new int[width * this.stripHeight];
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            if (tileY != currentStrip) {
+                int stripY = tileY * stripHeight;
+                int rows = Math.min(stripHeight, height - stripY);
+                try {
+                    readStrip(reader, width, stripY, rows, rgbData);
+                } catch (IOException e) {
+                    //RenderedImage can't throw checked exceptions, so the writer gets this as the cause
+                    throw new IllegalStateException("IO Exception: " + e.getMessage(), e);
+                }
+                WritableRaster raster = colorModel.createCompatibleWritableRaster(width, stripHeight);
+                if (indexed) {
+                    //Packed 1, 2, or 4 bits per pixel for small palettes, so the samples are set through the raster
+                    for (int i = 0; i < width * rows; i++) {
+                        rgbData[i] = palette.indexOf(rgbData[i]);
+                    }
+                    raster.setSamples(0, 0, width, rows, 0, rgbData);
+                }
+                else {
+                    int[] pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    for (int i = 0; i < width * rows; i++) {
+                        pixels[i] = palette.getColor(palette.indexOf(rgbData[i]));
+                    }
+                }
+                currentRaster = raster.createWritableTranslatedChild(0, stripY);
+                currentStrip = tileY;
+            }
+            return currentRaster;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle bounds = rect.intersection(new Rectangle(0, 0, width, height));
+            int firstStrip = bounds.y / stripHeight;
+            int lastStrip = (bounds.y + bounds.height - 1) / stripHeight;
+            if (firstStrip == lastStrip) {
+                return getTile(0, firstStrip).createChild(bounds.x, bounds.y, bounds.width, bounds.height,
+                        bounds.x, bounds.y, null);
+            }
+            WritableRaster raster = colorModel.createCompatibleWritableRaster(bounds.width, bounds.height)
+                    .createWritableTranslatedChild(bounds.x, bounds.y);
+            for (int strip = firstStrip; strip <= lastStrip; strip++) {
+                raster.setRect(getTile(0, strip));
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                return (WritableRaster) getData();
+            }
+            for (int strip = 0; strip < getNumYTiles(); strip++) {
+                raster.setRect(getTile(0, strip));
+            }
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + stripHeight - 1) / stripHeight;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return stripHeight;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * Why the KMeansAlgorithm stopped iterating.
+ */
+public enum TerminationReason {
+    //No centroid moved
+    CONVERGED,
+    //The "max-iterations" iterations (or mini-batches) were run
+    MAX_ITERATIONS,
+    //The inertia improved by less than the "min-improvement" fraction
+    MIN_IMPROVEMENT,
+    //No centroid moved further than the "tolerance"
+    CENTRE_SHIFT,
+    //The "time-limit" ran out
+    TIME_LIMIT,
+    //The run was cancelled, with KMeansAlgorithm.cancel
+    CANCELLED
+}
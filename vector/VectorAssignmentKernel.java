@@ -0,0 +1,80 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * AssignmentKernel using the incubating JDK Vector API, comparing as many points as fit in a vector register to one
+ *  centre at a time.
+ * The points' channels are converted to doubles once per block, then each lane sums the squared distance of its point
+ *  with the same operations in the same order as the scalar code, so the result is identical.
+ *
+ * Needs "--add-modules jdk.incubator.vector" to compile and run, so it is kept out of src:
+ *  "javac --add-modules jdk.incubator.vector -d out src/*.java vector/*.java"
+ * PackedKMeansEngine loads it by name, and falls back to scalar code if it isn't there.
+ */
+public class VectorAssignmentKernel implements AssignmentKernel {
+    private static final VectorSpecies<Double> DOUBLE_SPECIES = DoubleVector.SPECIES_PREFERRED;
+    //Ints with as many lanes as the doubles, to hold the centre indices
+    private static final VectorSpecies<Integer> INT_SPECIES =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLE_SPECIES.length() * Integer.SIZE));
+
+    private final int[][] channels;
+    private final double[][] blockChannels;
+
+    public VectorAssignmentKernel(int[][] channels) {
+        this.channels = channels;
+        this.blockChannels = new double[channels.length][BLOCK_SIZE];
+    }
+
+    @Override
+    public void closestCentres(int from, int to, double[][] centres, int[] closest) {
+        int numPoints = to - from;
+        int numCoords = channels.length;
+        for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+            int[] channel = channels[coordIndex];
+            double[] blockChannel = blockChannels[coordIndex];
+            for (int i = 0; i < numPoints; i++) {
+                blockChannel[i] = channel[from + i];
+            }
+        }
+
+        int vectorEnd = DOUBLE_SPECIES.loopBound(numPoints);
+        for (int i = 0; i < vectorEnd; i += DOUBLE_SPECIES.length()) {
+            DoubleVector minDistances = DoubleVector.broadcast(DOUBLE_SPECIES, Double.POSITIVE_INFINITY);
+            IntVector minCentres = IntVector.zero(INT_SPECIES);
+            for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+                double[] centre = centres[centreIndex];
+                DoubleVector distances = DoubleVector.zero(DOUBLE_SPECIES);
+                for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                    DoubleVector differences = DoubleVector.fromArray(DOUBLE_SPECIES, blockChannels[coordIndex], i)
+                            .sub(centre[coordIndex]);
+                    distances = distances.add(differences.mul(differences));
+                }
+                VectorMask<Double> closer = distances.lt(minDistances);
+                minDistances = minDistances.blend(distances, closer);
+                minCentres = minCentres.blend(centreIndex, closer.cast(INT_SPECIES));
+            }
+            minCentres.intoArray(closest, i);
+        }
+
+        for (int i = vectorEnd; i < numPoints; i++) {
+            int minCentre = 0;
+            double minDistance = Double.POSITIVE_INFINITY;
+            for (int centreIndex = 0; centreIndex < centres.length; centreIndex++) {
+                double[] centre = centres[centreIndex];
+                double distance = 0;
+                for (int coordIndex = 0; coordIndex < numCoords; coordIndex++) {
+                    double difference = blockChannels[coordIndex][i] - centre[coordIndex];
+                    distance += difference * difference;
+                }
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    minCentre = centreIndex;
+                }
+            }
+            closest[i] = minCentre;
+        }
+    }
+}